@@ -0,0 +1,30 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+/**
+ * A circular elevator disk scheduler. The head only services requests while
+ * moving towards higher sectors; once none remain ahead of it, it returns to
+ * the lowest pending request. This gives every sector the same expected
+ * wait, unlike <tt>SCANDiskScheduler</tt>, which favors the middle of the
+ * disk.
+ */
+public class CLOOKDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new C-LOOK disk scheduler.
+	 */
+	public CLOOKDiskScheduler() {
+	}
+
+	public DiskRequest nextRequest(LinkedList<DiskRequest> queue, int head) {
+		DiskRequest ahead = null, lowest = null;
+		for (DiskRequest request : queue) {
+			if (request.sector >= head
+					&& (ahead == null || request.sector < ahead.sector))
+				ahead = request;
+			if (lowest == null || request.sector < lowest.sector)
+				lowest = request;
+		}
+		return ahead != null ? ahead : lowest;
+	}
+}
@@ -0,0 +1,59 @@
+package nachos.filesys;
+
+import nachos.threads.*;
+
+/**
+ * A pending transfer between a run of disk sectors and a kernel buffer.
+ *
+ * @see nachos.filesys.SynchDisk
+ */
+public class DiskRequest {
+	DiskRequest(int sector, int count, boolean write, byte[] data,
+			int offset) {
+		this.sector = sector;
+		this.count = count;
+		this.write = write;
+		this.data = data;
+		this.offset = offset;
+	}
+
+	/**
+	 * Return the first sector of this request.
+	 *
+	 * @return the first sector of this request.
+	 */
+	public int getSector() {
+		return sector;
+	}
+
+	/**
+	 * Return the number of sectors this request transfers.
+	 *
+	 * @return the number of sectors this request transfers.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this request writes to the disk.
+	 *
+	 * @return <tt>true</tt> if this request writes to the disk.
+	 */
+	public boolean isWrite() {
+		return write;
+	}
+
+	int sector;
+
+	int count;
+
+	boolean write;
+
+	byte[] data;
+
+	int offset;
+
+	/** Released by the disk once the transfer has completed. */
+	Semaphore done = new Semaphore(0);
+}
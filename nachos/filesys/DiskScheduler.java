@@ -0,0 +1,27 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+/**
+ * Chooses the order in which a disk services its pending requests.
+ *
+ * @see nachos.filesys.SynchDisk
+ */
+public abstract class DiskScheduler {
+	/**
+	 * Allocate a new disk scheduler.
+	 */
+	public DiskScheduler() {
+	}
+
+	/**
+	 * Choose the next request to service. The request is not removed from
+	 * <tt>queue</tt>.
+	 *
+	 * @param queue the pending requests, in arrival order. Never empty.
+	 * @param head the sector under the disk head.
+	 * @return the request to service next.
+	 */
+	public abstract DiskRequest nextRequest(LinkedList<DiskRequest> queue,
+			int head);
+}
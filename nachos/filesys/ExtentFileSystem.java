@@ -0,0 +1,1135 @@
+package nachos.filesys;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A conventional file system on a <tt>SynchDisk</tt> that allocates files in
+ * extents and supports a tree of directories.
+ *
+ * <p>
+ * Block 0 of the disk is the superblock. It is followed by a bitmap with one
+ * bit per block, marking the blocks in use, and by a table of
+ * <tt>ExtentFileSystem.numInodes</tt> inodes; the rest of the disk holds file
+ * data. An inode records up to six extents, each a run of consecutive blocks,
+ * and a file with more points to an indirect block holding the rest. When a
+ * file grows, its last extent is extended if the blocks after it are free;
+ * otherwise a new extent is taken from the first free run long enough for
+ * the whole request, so most files are laid out in one or a few extents and
+ * are read and written with one disk request per extent.
+ *
+ * <p>
+ * A directory is a file of fixed-size entries, each naming a file or
+ * directory and its inode. The first time a directory is used its entries
+ * are read in one pass and indexed in a hash table, so that looking up,
+ * adding and removing a name takes the same time however large the directory
+ * is, and changing an entry writes only the block that holds it. The bitmap
+ * and inode table are kept in memory and their changed blocks are written
+ * back at the end of each operation.
+ *
+ * <p>
+ * Paths name a file from the root directory, with components separated by
+ * <tt>/</tt>. A file that does not exist in the root directory yet is
+ * imported from the stub file system the first time it is opened, so that
+ * programs can still be loaded.
+ */
+public class ExtentFileSystem implements KernelFileSystem {
+	/**
+	 * Allocate a new extent-based file system on a new disk.
+	 */
+	public ExtentFileSystem() {
+		this(new SynchDisk());
+	}
+
+	/**
+	 * Allocate a new extent-based file system on <tt>disk</tt>. The disk is not
+	 * read until the file system is first used.
+	 *
+	 * @param disk the disk holding the file system.
+	 */
+	public ExtentFileSystem(SynchDisk disk) {
+		this.disk = disk;
+
+		blockSize = Config.getInteger("ExtentFileSystem.blockSize", 1024);
+		numInodes = Config.getInteger("ExtentFileSystem.numInodes", 1024);
+
+		Lib.assertTrue(blockSize % disk.getSectorSize() == 0
+				&& blockSize >= inodeSize && blockSize % entrySize == 0);
+		Lib.assertTrue(numInodes > rootInum);
+
+		sectorsPerBlock = blockSize / disk.getSectorSize();
+		numBlocks = disk.getNumSectors() / sectorsPerBlock;
+		bitmapBlocks = (numBlocks + 8 * blockSize - 1) / (8 * blockSize);
+		inodeBlocks = (numInodes * inodeSize + blockSize - 1) / blockSize;
+		firstInodeBlock = firstBitmapBlock + bitmapBlocks;
+		firstDataBlock = firstInodeBlock + inodeBlocks;
+		maxExtents = numDirectExtents + blockSize / 8;
+
+		Lib.assertTrue(firstDataBlock < numBlocks);
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+		mount();
+
+		Inode inode = null;
+		LinkedList<String> path = parsePath(name);
+		Directory parent = lookupParent(path);
+
+		if (parent != null && !path.isEmpty()) {
+			String last = path.getLast();
+			Integer inum = parent.lookup(last);
+
+			if (inum == null) {
+				byte[] contents = null;
+				if (!truncate && parent.inode.inum == rootInum)
+					contents = importFromStub(last);
+
+				if (truncate || contents != null)
+					inode = createFile(parent, last, fileType);
+
+				if (inode != null && contents != null
+						&& writeData(inode, 0, contents, 0, contents.length) != contents.length) {
+					removeFile(parent, last);
+					inode = null;
+				}
+			}
+			else {
+				inode = getInode(inum);
+				if (inode.type != fileType)
+					inode = null;
+				else if (truncate && inode.length > 0)
+					truncate(inode, 0);
+			}
+		}
+
+		if (inode != null) {
+			inode.openCount++;
+			openCount++;
+		}
+
+		flushMetadata();
+		lock.release();
+
+		return inode == null ? null : new ExtentOpenFile(name, inode);
+	}
+
+	/**
+	 * Remove a file, or a directory if it is empty.
+	 *
+	 * @param name the path of the file or directory to remove.
+	 * @return <tt>true</tt> if it was removed.
+	 */
+	public boolean remove(String name) {
+		lock.acquire();
+		mount();
+
+		boolean successful = false;
+		LinkedList<String> path = parsePath(name);
+		Directory parent = lookupParent(path);
+
+		if (parent != null && !path.isEmpty())
+			successful = removeFile(parent, path.getLast());
+
+		flushMetadata();
+		lock.release();
+
+		return successful;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Create an empty directory.
+	 *
+	 * @param name the path of the new directory.
+	 * @return <tt>true</tt> if the directory was created.
+	 */
+	public boolean mkdir(String name) {
+		lock.acquire();
+		mount();
+
+		boolean successful = false;
+		LinkedList<String> path = parsePath(name);
+		Directory parent = lookupParent(path);
+
+		if (parent != null && !path.isEmpty()
+				&& parent.lookup(path.getLast()) == null)
+			successful = createFile(parent, path.getLast(), directoryType) != null;
+
+		flushMetadata();
+		lock.release();
+
+		return successful;
+	}
+
+	/**
+	 * Test whether a path names a directory.
+	 *
+	 * @param name the path to test.
+	 * @return <tt>true</tt> if <i>name</i> is a directory.
+	 */
+	public boolean isDirectory(String name) {
+		lock.acquire();
+		mount();
+
+		LinkedList<String> path = parsePath(name);
+		boolean successful = path != null
+				&& lookupDirectory(path, path.size()) != null;
+
+		lock.release();
+
+		return successful;
+	}
+
+	/**
+	 * Save the disk image.
+	 */
+	public void sync() {
+		disk.sync();
+	}
+
+	/**
+	 * Print the allocation and directory activity counts.
+	 */
+	public void print() {
+		System.out.println("Extents: files created " + numFilesCreated
+				+ ", extents allocated " + numExtentsAllocated
+				+ ", blocks allocated " + numBlocksAllocated
+				+ ", directory lookups " + numLookups
+				+ ", directory entries read " + numEntriesRead);
+		disk.print();
+	}
+
+	/**
+	 * Read the superblock, bitmap and inode table, if that has not been done
+	 * yet. Formats an empty file system if the disk does not hold one of the
+	 * same shape.
+	 */
+	private void mount() {
+		if (mounted)
+			return;
+		mounted = true;
+
+		bitmap = new byte[bitmapBlocks * blockSize];
+		bitmapDirty = new boolean[bitmapBlocks];
+		inodeTable = new byte[inodeBlocks * blockSize];
+		inodeBlockDirty = new boolean[inodeBlocks];
+		inodeUsed = new boolean[numInodes];
+
+		byte[] superblock = new byte[blockSize];
+		readBlocks(0, superblock, 0, 1);
+
+		if (Lib.bytesToInt(superblock, 0) != superMagic
+				|| Lib.bytesToInt(superblock, 4) != numBlocks
+				|| Lib.bytesToInt(superblock, 8) != blockSize
+				|| Lib.bytesToInt(superblock, 12) != numInodes) {
+			format();
+			return;
+		}
+
+		readBlocks(firstBitmapBlock, bitmap, 0, bitmapBlocks);
+		readBlocks(firstInodeBlock, inodeTable, 0, inodeBlocks);
+
+		for (int inum = 0; inum < numInodes; inum++)
+			inodeUsed[inum] = Lib.bytesToInt(inodeTable, inum * inodeSize) != freeType;
+
+		// entries with inode 0 are free, so it is never given out
+		inodeUsed[0] = true;
+	}
+
+	private void format() {
+		for (int block = 0; block < firstDataBlock; block++)
+			setUsed(block, true);
+
+		inodeUsed[0] = true;
+
+		Inode root = new Inode(rootInum, directoryType);
+		inodeUsed[rootInum] = true;
+		inodes.put(rootInum, root);
+		writeInode(root);
+
+		byte[] superblock = new byte[blockSize];
+		Lib.bytesFromInt(superblock, 0, superMagic);
+		Lib.bytesFromInt(superblock, 4, numBlocks);
+		Lib.bytesFromInt(superblock, 8, blockSize);
+		Lib.bytesFromInt(superblock, 12, numInodes);
+		writeBlocks(0, superblock, 0, 1);
+
+		for (int i = 0; i < inodeBlocks; i++)
+			inodeBlockDirty[i] = true;
+
+		flushMetadata();
+	}
+
+	/**
+	 * Split a path into its components, dropping empty and <tt>.</tt>
+	 * components and applying <tt>..</tt> ones. Returns <tt>null</tt> if a
+	 * component is too long to fit in a directory entry.
+	 */
+	private LinkedList<String> parsePath(String name) {
+		LinkedList<String> path = new LinkedList<String>();
+
+		for (String component : name.split("/")) {
+			if (component.length() == 0 || component.equals("."))
+				continue;
+
+			if (component.equals("..")) {
+				if (!path.isEmpty())
+					path.removeLast();
+			}
+			else if (component.getBytes().length > maxNameLength) {
+				return null;
+			}
+			else {
+				path.add(component);
+			}
+		}
+
+		return path;
+	}
+
+	/**
+	 * Return the directory named by the first <tt>count</tt> components of
+	 * <tt>path</tt>, or <tt>null</tt> if there is none.
+	 */
+	private Directory lookupDirectory(LinkedList<String> path, int count) {
+		Directory directory = getDirectory(rootInum);
+
+		for (String component : path) {
+			if (count-- == 0)
+				break;
+
+			Integer inum = directory.lookup(component);
+			if (inum == null)
+				return null;
+
+			directory = getDirectory(inum);
+			if (directory == null)
+				return null;
+		}
+
+		return directory;
+	}
+
+	private Directory lookupParent(LinkedList<String> path) {
+		if (path == null || path.isEmpty())
+			return null;
+
+		return lookupDirectory(path, path.size() - 1);
+	}
+
+	/**
+	 * Return the directory stored in inode <tt>inum</tt>, reading and indexing
+	 * its entries if it is not in memory yet. Returns <tt>null</tt> if the
+	 * inode is not a directory.
+	 */
+	private Directory getDirectory(int inum) {
+		Directory directory = directories.get(inum);
+		if (directory != null)
+			return directory;
+
+		Inode inode = getInode(inum);
+		if (inode.type != directoryType)
+			return null;
+
+		directory = new Directory(inode);
+		directory.data = new byte[Math.max(inode.length, blockSize)];
+		readData(inode, 0, directory.data, 0, inode.length);
+		directory.numSlots = inode.length / entrySize;
+
+		for (int slot = 0; slot < directory.numSlots; slot++) {
+			int offset = slot * entrySize;
+			if (Lib.bytesToInt(directory.data, offset) == 0) {
+				directory.freeSlots.add(slot);
+			}
+			else {
+				int nameLength = Lib.bytesToInt(directory.data, offset + 4);
+				directory.slots.put(new String(directory.data, offset + 8,
+						nameLength), slot);
+			}
+		}
+
+		numEntriesRead += directory.numSlots;
+		directories.put(inum, directory);
+
+		return directory;
+	}
+
+	/**
+	 * Add an entry to a directory, writing the block that holds it.
+	 */
+	private boolean addEntry(Directory directory, String name, int inum) {
+		int slot;
+		if (!directory.freeSlots.isEmpty())
+			slot = directory.freeSlots.removeFirst();
+		else
+			slot = directory.numSlots++;
+
+		int offset = slot * entrySize;
+		if (offset + entrySize > directory.data.length) {
+			byte[] data = new byte[2 * directory.data.length];
+			System.arraycopy(directory.data, 0, data, 0, directory.data.length);
+			directory.data = data;
+		}
+
+		byte[] nameBytes = name.getBytes();
+		Lib.bytesFromInt(directory.data, offset, inum);
+		Lib.bytesFromInt(directory.data, offset + 4, nameBytes.length);
+		System.arraycopy(nameBytes, 0, directory.data, offset + 8,
+				nameBytes.length);
+		directory.slots.put(name, slot);
+
+		if (!writeEntry(directory, slot)) {
+			removeEntry(directory, name);
+			return false;
+		}
+
+		return true;
+	}
+
+	private void removeEntry(Directory directory, String name) {
+		int slot = directory.slots.remove(name);
+
+		java.util.Arrays.fill(directory.data, slot * entrySize, (slot + 1)
+				* entrySize, (byte) 0);
+		directory.freeSlots.add(slot);
+
+		writeEntry(directory, slot);
+	}
+
+	/**
+	 * Write the block of a directory holding an entry. The block is written
+	 * whole from the directory's copy in memory, so it need not be read first.
+	 */
+	private boolean writeEntry(Directory directory, int slot) {
+		int start = slot * entrySize / blockSize * blockSize;
+		int end = Math.min(start + blockSize, directory.numSlots * entrySize);
+
+		return writeData(directory.inode, start, directory.data, start, end
+				- start) == end - start;
+	}
+
+	private byte[] importFromStub(String name) {
+		FileSystem stub = Machine.stubFileSystem();
+		if (stub == null)
+			return null;
+
+		OpenFile file = stub.open(name, false);
+		if (file == null)
+			return null;
+
+		byte[] contents = new byte[Math.max(0, file.length())];
+		int amount = file.read(0, contents, 0, contents.length);
+		file.close();
+
+		return amount == contents.length ? contents : null;
+	}
+
+	private Inode createFile(Directory parent, String name, int type) {
+		int inum = inodeRotor;
+		while (inodeUsed[inum]) {
+			inum = (inum + 1) % numInodes;
+			if (inum == inodeRotor)
+				return null;
+		}
+		inodeRotor = (inum + 1) % numInodes;
+
+		Inode inode = new Inode(inum, type);
+		inodeUsed[inum] = true;
+		inodes.put(inum, inode);
+		writeInode(inode);
+
+		if (!addEntry(parent, name, inum)) {
+			freeInode(inode);
+			return null;
+		}
+
+		numFilesCreated++;
+		return inode;
+	}
+
+	private boolean removeFile(Directory parent, String name) {
+		Integer inum = parent.lookup(name);
+		if (inum == null)
+			return false;
+
+		Inode inode = getInode(inum);
+		if (inode.type == directoryType) {
+			if (!getDirectory(inum).slots.isEmpty())
+				return false;
+			directories.remove(inum);
+		}
+
+		removeEntry(parent, name);
+
+		inode.removed = true;
+		if (inode.openCount == 0)
+			freeInode(inode);
+
+		return true;
+	}
+
+	private void close(Inode inode) {
+		lock.acquire();
+
+		Lib.assertTrue(inode.openCount > 0);
+		inode.openCount--;
+		openCount--;
+
+		if (inode.removed && inode.openCount == 0)
+			freeInode(inode);
+
+		flushMetadata();
+		lock.release();
+	}
+
+	private void freeInode(Inode inode) {
+		truncate(inode, 0);
+
+		inode.type = freeType;
+		writeInode(inode);
+
+		inodes.remove(inode.inum);
+		inodeUsed[inode.inum] = false;
+	}
+
+	/**
+	 * Shorten a file to <tt>length</tt> bytes, freeing the blocks past its new
+	 * end.
+	 */
+	private void truncate(Inode inode, int length) {
+		int keep = (length + blockSize - 1) / blockSize;
+		int blocks = 0, extents = 0;
+
+		for (int i = 0; i < inode.numExtents; i++) {
+			int count = inode.extentCount[i];
+
+			if (blocks + count <= keep) {
+				extents = i + 1;
+			}
+			else {
+				int kept = Math.max(0, keep - blocks);
+				freeRun(inode.extentStart[i] + kept, count - kept);
+				inode.extentCount[i] = kept;
+				if (kept > 0)
+					extents = i + 1;
+			}
+
+			blocks += count;
+		}
+
+		inode.numExtents = extents;
+		inode.numBlocks = Math.min(inode.numBlocks, keep);
+		inode.length = length;
+
+		if (inode.numExtents <= numDirectExtents && inode.indirectBlock != 0) {
+			freeRun(inode.indirectBlock, 1);
+			inode.indirectBlock = 0;
+		}
+
+		writeInode(inode);
+	}
+
+	/**
+	 * Allocate blocks to a file until it has <tt>blocks</tt> of them. Returns
+	 * <tt>false</tt> if the disk or the file's extent list filled up first.
+	 */
+	private boolean grow(Inode inode, int blocks) {
+		boolean changed = false, successful = true;
+
+		while (inode.numBlocks < blocks) {
+			int last = inode.numExtents - 1;
+			int goal = last < 0 ? allocationRotor : inode.extentStart[last]
+					+ inode.extentCount[last];
+
+			int[] run = allocateRun(goal, blocks - inode.numBlocks);
+			if (run == null) {
+				successful = false;
+				break;
+			}
+
+			if (last >= 0 && run[0] == goal) {
+				inode.extentCount[last] += run[1];
+			}
+			else {
+				if (inode.numExtents == maxExtents) {
+					freeRun(run[0], run[1]);
+					successful = false;
+					break;
+				}
+
+				if (inode.numExtents == numDirectExtents) {
+					int[] indirect = allocateRun(run[0] + run[1], 1);
+					if (indirect == null) {
+						freeRun(run[0], run[1]);
+						successful = false;
+						break;
+					}
+					inode.indirectBlock = indirect[0];
+				}
+
+				inode.extentStart[inode.numExtents] = run[0];
+				inode.extentCount[inode.numExtents] = run[1];
+				inode.numExtents++;
+				numExtentsAllocated++;
+			}
+
+			inode.numBlocks += run[1];
+			changed = true;
+		}
+
+		if (changed)
+			writeInode(inode);
+
+		return successful;
+	}
+
+	/**
+	 * Allocate a run of up to <tt>want</tt> free blocks. Takes the free blocks
+	 * starting at <tt>goal</tt> if there are any, so that a file can grow in
+	 * place; otherwise the first run of <tt>want</tt> free blocks after
+	 * <tt>goal</tt>, or failing that the longest free run on the disk. Returns
+	 * the first block and length of the run, or <tt>null</tt> if the disk is
+	 * full.
+	 */
+	private int[] allocateRun(int goal, int want) {
+		int dataBlocks = numBlocks - firstDataBlock;
+		if (goal < firstDataBlock || goal >= numBlocks)
+			goal = firstDataBlock;
+
+		int bestStart = -1, bestCount = 0;
+		int block = goal;
+
+		for (int scanned = 0; scanned < dataBlocks;) {
+			if (isUsed(block)) {
+				block++;
+				scanned++;
+			}
+			else {
+				int start = block, count = 0;
+				while (block < numBlocks && !isUsed(block) && count < want) {
+					block++;
+					scanned++;
+					count++;
+				}
+
+				if (count > bestCount || start == goal) {
+					bestStart = start;
+					bestCount = count;
+				}
+
+				if (count == want || start == goal)
+					break;
+			}
+
+			if (block == numBlocks)
+				block = firstDataBlock;
+		}
+
+		if (bestStart == -1)
+			return null;
+
+		for (int i = 0; i < bestCount; i++)
+			setUsed(bestStart + i, true);
+
+		allocationRotor = bestStart + bestCount;
+		numBlocksAllocated += bestCount;
+
+		return new int[] { bestStart, bestCount };
+	}
+
+	private void freeRun(int start, int count) {
+		for (int i = 0; i < count; i++)
+			setUsed(start + i, false);
+	}
+
+	private boolean isUsed(int block) {
+		return (bitmap[block / 8] & (1 << (block % 8))) != 0;
+	}
+
+	private void setUsed(int block, boolean used) {
+		if (used)
+			bitmap[block / 8] |= (byte) (1 << (block % 8));
+		else
+			bitmap[block / 8] &= (byte) ~(1 << (block % 8));
+
+		bitmapDirty[block / 8 / blockSize] = true;
+	}
+
+	/**
+	 * Return the disk block holding block <tt>fileBlock</tt> of a file, and
+	 * how many blocks of the file follow it in the same extent.
+	 */
+	private int[] mapBlock(Inode inode, int fileBlock) {
+		for (int i = 0; i < inode.numExtents; i++) {
+			if (fileBlock < inode.extentCount[i])
+				return new int[] { inode.extentStart[i] + fileBlock,
+						inode.extentCount[i] - fileBlock };
+
+			fileBlock -= inode.extentCount[i];
+		}
+
+		Lib.assertNotReached("block past the end of the file");
+		return null;
+	}
+
+	private int read(Inode inode, int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		lock.acquire();
+		int amount = readData(inode, pos, buf, offset, length);
+		lock.release();
+
+		return amount;
+	}
+
+	private int write(Inode inode, int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		lock.acquire();
+
+		int amount = writeData(inode, pos, buf, offset, length);
+
+		flushMetadata();
+		lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Read file data with one disk request for each extent it touches.
+	 */
+	private int readData(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		int end = Math.min(pos + length, inode.length);
+		int amount = 0;
+
+		while (pos < end) {
+			int fileBlock = pos / blockSize;
+			int[] run = mapBlock(inode, fileBlock);
+			int count = Math.min(run[1], (end - 1) / blockSize - fileBlock + 1);
+
+			byte[] data = new byte[count * blockSize];
+			readBlocks(run[0], data, 0, count);
+
+			int skip = pos - fileBlock * blockSize;
+			int n = Math.min(end - pos, count * blockSize - skip);
+			System.arraycopy(data, skip, buf, offset, n);
+
+			pos += n;
+			offset += n;
+			amount += n;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Write file data with one disk request for each extent it touches,
+	 * allocating blocks as the file grows. The partial blocks at either end
+	 * are read first only if they hold data that must be kept.
+	 */
+	private int writeData(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos > inode.length) {
+			int gap = pos - inode.length;
+			if (writeData(inode, inode.length, new byte[gap], 0, gap) != gap)
+				return 0;
+		}
+
+		int oldLength = inode.length;
+		int end = pos + length;
+
+		grow(inode, (end + blockSize - 1) / blockSize);
+		end = Math.min(end, inode.numBlocks * blockSize);
+
+		int amount = 0;
+		while (pos < end) {
+			int fileBlock = pos / blockSize;
+			int[] run = mapBlock(inode, fileBlock);
+			int count = Math.min(run[1], (end - 1) / blockSize - fileBlock + 1);
+
+			byte[] data = new byte[count * blockSize];
+			int skip = pos - fileBlock * blockSize;
+			int n = Math.min(end - pos, count * blockSize - skip);
+
+			if (skip > 0 && fileBlock * blockSize < oldLength)
+				readBlocks(run[0], data, 0, 1);
+			if ((skip + n) % blockSize != 0 && pos + n < oldLength
+					&& (count > 1 || skip == 0))
+				readBlocks(run[0] + count - 1, data, (count - 1) * blockSize, 1);
+
+			System.arraycopy(buf, offset, data, skip, n);
+			writeBlocks(run[0], data, 0, count);
+
+			pos += n;
+			offset += n;
+			amount += n;
+		}
+
+		if (pos > inode.length) {
+			inode.length = pos;
+			writeInode(inode);
+		}
+
+		return amount;
+	}
+
+	private Inode getInode(int inum) {
+		Inode inode = inodes.get(inum);
+		if (inode != null)
+			return inode;
+
+		int offset = inum * inodeSize;
+		inode = new Inode(inum, Lib.bytesToInt(inodeTable, offset));
+		inode.length = Lib.bytesToInt(inodeTable, offset + 4);
+		inode.numExtents = Lib.bytesToInt(inodeTable, offset + 8);
+		inode.indirectBlock = Lib.bytesToInt(inodeTable, offset + 12);
+
+		byte[] indirect = null;
+		if (inode.numExtents > numDirectExtents) {
+			indirect = new byte[blockSize];
+			readBlocks(inode.indirectBlock, indirect, 0, 1);
+		}
+
+		for (int i = 0; i < inode.numExtents; i++) {
+			byte[] source = i < numDirectExtents ? inodeTable : indirect;
+			int position = i < numDirectExtents ? offset + 16 + 8 * i
+					: 8 * (i - numDirectExtents);
+
+			inode.extentStart[i] = Lib.bytesToInt(source, position);
+			inode.extentCount[i] = Lib.bytesToInt(source, position + 4);
+			inode.numBlocks += inode.extentCount[i];
+		}
+
+		inodes.put(inum, inode);
+		return inode;
+	}
+
+	/**
+	 * Copy an inode into the inode table, and write its indirect block if it
+	 * has one.
+	 */
+	private void writeInode(Inode inode) {
+		int offset = inode.inum * inodeSize;
+		Lib.bytesFromInt(inodeTable, offset, inode.type);
+		Lib.bytesFromInt(inodeTable, offset + 4, inode.length);
+		Lib.bytesFromInt(inodeTable, offset + 8, inode.numExtents);
+		Lib.bytesFromInt(inodeTable, offset + 12, inode.indirectBlock);
+
+		byte[] indirect = null;
+		if (inode.numExtents > numDirectExtents)
+			indirect = new byte[blockSize];
+
+		for (int i = 0; i < inode.numExtents; i++) {
+			byte[] target = i < numDirectExtents ? inodeTable : indirect;
+			int position = i < numDirectExtents ? offset + 16 + 8 * i
+					: 8 * (i - numDirectExtents);
+
+			Lib.bytesFromInt(target, position, inode.extentStart[i]);
+			Lib.bytesFromInt(target, position + 4, inode.extentCount[i]);
+		}
+
+		inodeBlockDirty[offset / blockSize] = true;
+
+		if (indirect != null)
+			writeBlocks(inode.indirectBlock, indirect, 0, 1);
+	}
+
+	/**
+	 * Write back the changed blocks of the bitmap and inode table, with one
+	 * request for each run of them.
+	 */
+	private void flushMetadata() {
+		flushBlocks(bitmap, bitmapDirty, firstBitmapBlock);
+		flushBlocks(inodeTable, inodeBlockDirty, firstInodeBlock);
+	}
+
+	private void flushBlocks(byte[] table, boolean[] dirty, int firstBlock) {
+		int i = 0;
+		while (i < dirty.length) {
+			if (!dirty[i]) {
+				i++;
+				continue;
+			}
+
+			int j = i;
+			while (j < dirty.length && dirty[j])
+				dirty[j++] = false;
+
+			writeBlocks(firstBlock + i, table, i * blockSize, j - i);
+			i = j;
+		}
+	}
+
+	private void readBlocks(int block, byte[] buf, int offset, int count) {
+		disk.readSectors(block * sectorsPerBlock, buf, offset, count
+				* sectorsPerBlock);
+	}
+
+	private void writeBlocks(int block, byte[] buf, int offset, int count) {
+		disk.writeSectors(block * sectorsPerBlock, buf, offset, count
+				* sectorsPerBlock);
+	}
+
+	/**
+	 * Test nested directories, extent allocation, and that creating and
+	 * removing files takes no longer in a large directory than in a small
+	 * one.
+	 */
+	public static void selfTest() {
+		ExtentFileSystem fs = new ExtentFileSystem(new SynchDisk());
+
+		Lib.assertTrue(fs.mkdir("extentTest"));
+		Lib.assertTrue(fs.mkdir("/extentTest/sub"));
+		Lib.assertTrue(!fs.mkdir("extentTest/sub"));
+		Lib.assertTrue(!fs.mkdir("extentTest/missing/sub"));
+		Lib.assertTrue(fs.isDirectory("extentTest/./sub/../sub"));
+		Lib.assertTrue(fs.open("extentTest/sub", true) == null);
+
+		byte[] a = new byte[20 * fs.blockSize + 100];
+		for (int i = 0; i < a.length; i++)
+			a[i] = (byte) (i * 3);
+
+		// write in pieces that do not line up with blocks
+		OpenFile file = fs.open("extentTest/sub/big", true);
+		for (int pos = 0; pos < a.length; pos += 700)
+			Lib.assertTrue(file.write(pos, a, pos, Math.min(700, a.length - pos)) == Math
+					.min(700, a.length - pos));
+		file.close();
+
+		file = fs.open("/extentTest/../extentTest/sub/big", false);
+		byte[] buf = new byte[a.length];
+		Lib.assertTrue(file.read(0, buf, 0, buf.length) == a.length);
+		Lib.assertTrue(java.util.Arrays.equals(buf, a));
+		Lib.assertTrue(((ExtentOpenFile) file).inode.numExtents == 1);
+		file.close();
+
+		Lib.assertTrue(!fs.remove("extentTest/sub"));
+
+		int numFiles = Math.min(400, fs.numInodes - 8);
+		long firstTicks = 0, lastTicks = 0;
+
+		for (int i = 0; i < numFiles; i++) {
+			long start = Machine.timer().getTime();
+			file = fs.open("extentTest/f" + i, true);
+			Lib.assertTrue(file != null);
+			file.close();
+
+			long ticks = Machine.timer().getTime() - start;
+			if (i < 50)
+				firstTicks += ticks;
+			else if (i >= numFiles - 50)
+				lastTicks += ticks;
+		}
+
+		long lookupStart = Machine.timer().getTime();
+		file = fs.open("extentTest/f" + (numFiles - 1), false);
+		Lib.assertTrue(file != null);
+		file.close();
+		long lookupTicks = Machine.timer().getTime() - lookupStart;
+
+		for (int i = 0; i < numFiles; i++)
+			Lib.assertTrue(fs.remove("extentTest/f" + i));
+
+		Lib.assertTrue(fs.remove("extentTest/sub/big"));
+		Lib.assertTrue(fs.remove("extentTest/sub"));
+		Lib.assertTrue(fs.remove("extentTest"));
+		Lib.assertTrue(!fs.isDirectory("extentTest"));
+
+		// remounting sees the same tree
+		ExtentFileSystem remounted = new ExtentFileSystem(fs.disk);
+		Lib.assertTrue(!remounted.isDirectory("extentTest"));
+		Lib.assertTrue(remounted.mkdir("extentTest"));
+		Lib.assertTrue(remounted.remove("extentTest"));
+
+		System.out.println("ExtentFileSystem.selfTest passed: first 50 creates "
+				+ firstTicks + " ticks, last 50 creates " + lastTicks
+				+ " ticks, lookup in " + numFiles + " entries " + lookupTicks
+				+ " ticks");
+		fs.print();
+	}
+
+	/**
+	 * A file's inode, held in memory once it has been used.
+	 */
+	private class Inode {
+		Inode(int inum, int type) {
+			this.inum = inum;
+			this.type = type;
+		}
+
+		int inum;
+
+		int type;
+
+		int length = 0;
+
+		/** The first disk block and length of each extent. */
+		int[] extentStart = new int[maxExtents];
+
+		int[] extentCount = new int[maxExtents];
+
+		int numExtents = 0;
+
+		/** The total length of the extents, in blocks. */
+		int numBlocks = 0;
+
+		int indirectBlock = 0;
+
+		int openCount = 0;
+
+		/** Set once the file is unlinked; freed when the last handle closes. */
+		boolean removed = false;
+	}
+
+	/**
+	 * A directory's entries, held in memory once it has been used, with a
+	 * hash index from each name to the slot of its entry.
+	 */
+	private class Directory {
+		Directory(Inode inode) {
+			this.inode = inode;
+		}
+
+		Integer lookup(String name) {
+			numLookups++;
+
+			Integer slot = slots.get(name);
+			if (slot == null)
+				return null;
+
+			return Lib.bytesToInt(data, slot * entrySize);
+		}
+
+		Inode inode;
+
+		/** The contents of the directory file. */
+		byte[] data;
+
+		int numSlots;
+
+		HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+		LinkedList<Integer> freeSlots = new LinkedList<Integer>();
+	}
+
+	private class ExtentOpenFile extends OpenFileWithPosition {
+		ExtentOpenFile(String name, Inode inode) {
+			super(ExtentFileSystem.this, name);
+			this.inode = inode;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			return ExtentFileSystem.this.read(inode, pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			return ExtentFileSystem.this.write(inode, pos, buf, offset, length);
+		}
+
+		public int length() {
+			return inode.length;
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				ExtentFileSystem.this.close(inode);
+			}
+		}
+
+		private Inode inode;
+
+		private boolean open = true;
+	}
+
+	private SynchDisk disk;
+
+	private int blockSize;
+
+	private int sectorsPerBlock;
+
+	private int numBlocks;
+
+	private int numInodes;
+
+	private int bitmapBlocks;
+
+	private int inodeBlocks;
+
+	private int firstInodeBlock;
+
+	private int firstDataBlock;
+
+	private int maxExtents;
+
+	private boolean mounted = false;
+
+	/** One bit per disk block, set if the block is in use. */
+	private byte[] bitmap;
+
+	private boolean[] bitmapDirty;
+
+	private byte[] inodeTable;
+
+	private boolean[] inodeBlockDirty;
+
+	private boolean[] inodeUsed;
+
+	private HashMap<Integer, Inode> inodes = new HashMap<Integer, Inode>();
+
+	private HashMap<Integer, Directory> directories = new HashMap<Integer, Directory>();
+
+	/** Where the search for a free inode starts. */
+	private int inodeRotor = rootInum + 1;
+
+	/** Where a new file's first extent is looked for. */
+	private int allocationRotor = 0;
+
+	private int openCount = 0;
+
+	private Lock lock = new Lock();
+
+	private int numFilesCreated = 0;
+
+	private int numExtentsAllocated = 0;
+
+	private int numBlocksAllocated = 0;
+
+	private int numLookups = 0;
+
+	private int numEntriesRead = 0;
+
+	private static final int firstBitmapBlock = 1;
+
+	private static final int inodeSize = 64;
+
+	private static final int numDirectExtents = 6;
+
+	private static final int entrySize = 64;
+
+	private static final int maxNameLength = entrySize - 8;
+
+	private static final int rootInum = 1;
+
+	private static final int freeType = 0, fileType = 1, directoryType = 2;
+
+	private static final int superMagic = 0x45585446;
+}
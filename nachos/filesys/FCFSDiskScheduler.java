@@ -0,0 +1,18 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+/**
+ * A disk scheduler that services requests in arrival order.
+ */
+public class FCFSDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new FCFS disk scheduler.
+	 */
+	public FCFSDiskScheduler() {
+	}
+
+	public DiskRequest nextRequest(LinkedList<DiskRequest> queue, int head) {
+		return queue.getFirst();
+	}
+}
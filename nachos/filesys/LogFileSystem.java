@@ -0,0 +1,1253 @@
+package nachos.filesys;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A log-structured file system on a <tt>SynchDisk</tt>.
+ *
+ * <p>
+ * The first two blocks of the disk hold alternating checkpoint regions; the
+ * rest is divided into segments of <tt>LogFileSystem.segmentBlocks</tt>
+ * blocks. Every block the file system writes, whether file data, an inode,
+ * an indirect block or a piece of the inode map, is appended to the segment
+ * being filled in memory, and a full segment is written to the disk with one
+ * request. A checkpoint writes out a partly filled segment without sealing
+ * it, so that small synchronous updates do not waste segments. The first
+ * block of each segment is a summary recording, for each block, the file and
+ * offset it belongs to, the file's length after the write, the sequence
+ * number of the segment, and the segment written after it.
+ *
+ * <p>
+ * Every <tt>LogFileSystem.checkpointInterval</tt> segments, and on
+ * <tt>sync()</tt>, the dirty inodes and the inode map are appended to the
+ * log and the head of the log is recorded in a checkpoint region. After a
+ * crash, the file system is recovered from the newest valid checkpoint by
+ * rolling forward through the segments written after it, using their
+ * summaries.
+ *
+ * <p>
+ * A cleaner thread keeps a supply of free segments by copying the live
+ * blocks out of the segments with the fewest of them. A cleaned segment is
+ * only reused after the next checkpoint, so the previous checkpoint stays
+ * valid until then.
+ *
+ * <p>
+ * All files live in a single directory, stored as file 0. A file that is not
+ * in the log yet is imported from the stub file system the first time it is
+ * opened, so that programs can still be loaded.
+ */
+public class LogFileSystem implements KernelFileSystem {
+	/**
+	 * Allocate a new log-structured file system on a new disk.
+	 */
+	public LogFileSystem() {
+		this(new SynchDisk());
+	}
+
+	/**
+	 * Allocate a new log-structured file system on <tt>disk</tt>. The disk is
+	 * not read until the file system is first used.
+	 *
+	 * @param disk the disk holding the file system.
+	 */
+	public LogFileSystem(SynchDisk disk) {
+		this.disk = disk;
+
+		blockSize = Config.getInteger("LogFileSystem.blockSize", 1024);
+		segmentBlocks = Config.getInteger("LogFileSystem.segmentBlocks", 16);
+		maxFiles = Config.getInteger("LogFileSystem.maxFiles", 256);
+		checkpointInterval = Config.getInteger(
+				"LogFileSystem.checkpointInterval", 8);
+
+		Lib.assertTrue(blockSize % disk.getSectorSize() == 0);
+		Lib.assertTrue(segmentBlocks >= 2 && maxFiles >= 2
+				&& checkpointInterval > 0);
+
+		sectorsPerBlock = blockSize / disk.getSectorSize();
+		numSegments = (disk.getNumSectors() / sectorsPerBlock - firstSegmentBlock)
+				/ segmentBlocks;
+		numDirect = blockSize / 4 - 3;
+		maxFileBlocks = numDirect + blockSize / 4;
+		imapBlocks = (maxFiles * 4 + blockSize - 1) / blockSize;
+
+		Lib.assertTrue(numSegments >= cleanHighWater + 2);
+		Lib.assertTrue(4 * (5 + imapBlocks) <= blockSize);
+		Lib.assertTrue(4 * (4 + 3 * segmentBlocks) <= blockSize);
+
+		segmentBuffer = new byte[segmentBlocks * blockSize];
+		entryInum = new int[segmentBlocks];
+		entryIndex = new int[segmentBlocks];
+		entryLength = new int[segmentBlocks];
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+		mount();
+
+		Inode inode;
+		Integer inum = directory.get(name);
+
+		if (inum == null) {
+			byte[] contents = truncate ? null : importFromStub(name);
+			if (!truncate && contents == null) {
+				lock.release();
+				return null;
+			}
+
+			inode = createFile(name);
+			if (inode == null) {
+				lock.release();
+				return null;
+			}
+
+			if (contents != null
+					&& writeData(inode, 0, contents, 0, contents.length) != contents.length) {
+				removeFile(name);
+				lock.release();
+				return null;
+			}
+		}
+		else {
+			inode = getInode(inum);
+			if (truncate && inode.length > 0) {
+				truncate(inode, 0);
+				writeInode(inode);
+			}
+		}
+
+		inode.openCount++;
+		openCount++;
+
+		finishOperation();
+		lock.release();
+
+		return new LogOpenFile(name, inode);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+		mount();
+
+		boolean successful = removeFile(name);
+
+		finishOperation();
+		lock.release();
+
+		return successful;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Checkpoint the file system and save the disk image.
+	 */
+	public void sync() {
+		lock.acquire();
+
+		if (mounted)
+			checkpoint();
+
+		lock.release();
+
+		disk.sync();
+	}
+
+	/**
+	 * Print the log and disk activity counts.
+	 */
+	public void print() {
+		System.out.println("Log: segments written " + numSegmentsWritten
+				+ ", partial writes " + numPartialWrites + ", segments cleaned "
+				+ numSegmentsCleaned + ", blocks copied " + numBlocksCopied
+				+ ", checkpoints " + numCheckpoints
+				+ ", segments rolled forward " + numSegmentsRolled);
+		disk.print();
+	}
+
+	/**
+	 * Read the file system from the disk, if that has not been done yet.
+	 * Formats an empty file system if the disk has no valid checkpoint.
+	 */
+	private void mount() {
+		if (mounted)
+			return;
+		mounted = true;
+
+		imap = new int[maxFiles];
+		imapAddress = new int[imapBlocks];
+		imapBlockDirty = new boolean[imapBlocks];
+		segmentLive = new int[numSegments];
+
+		byte[] regions = new byte[2 * blockSize];
+		disk.readSectors(0, regions, 0, 2 * sectorsPerBlock);
+
+		int region = -1, seq = 0;
+		for (int i = 0; i < 2; i++) {
+			int offset = i * blockSize;
+			int regionSeq = Lib.bytesToInt(regions, offset + 4);
+
+			if (Lib.bytesToInt(regions, offset) == checkpointMagic
+					&& Lib.bytesToInt(regions, offset + 16 + 4 * imapBlocks) == regionSeq
+					&& (region == -1 || regionSeq > seq)) {
+				region = i;
+				seq = regionSeq;
+			}
+		}
+
+		int nextSeq = 1;
+
+		if (region != -1) {
+			int offset = region * blockSize;
+			checkpointSeq = seq;
+			checkpointRegion = 1 - region;
+
+			int head = Lib.bytesToInt(regions, offset + 8);
+			int headSeq = Lib.bytesToInt(regions, offset + 12);
+
+			byte[] block = new byte[blockSize];
+			for (int i = 0; i < imapBlocks; i++) {
+				imapAddress[i] = Lib.bytesToInt(regions, offset + 16 + 4 * i);
+				readBlock(imapAddress[i], block, 0);
+				for (int j = 0; j < blockSize / 4
+						&& i * blockSize / 4 + j < maxFiles; j++)
+					imap[i * blockSize / 4 + j] = Lib.bytesToInt(block, 4 * j);
+			}
+
+			nextSeq = rollForward(head, headSeq);
+		}
+
+		readDirectory();
+
+		// files created but never linked before a crash
+		for (int inum = 1; inum < maxFiles; inum++) {
+			if ((imap[inum] != 0 || inodes.containsKey(inum))
+					&& !directory.containsValue(inum)) {
+				imap[inum] = 0;
+				inodes.remove(inum);
+				imapBlockDirty[inum * 4 / blockSize] = true;
+			}
+		}
+
+		countLiveBlocks();
+
+		for (int segment = 0; segment < numSegments; segment++) {
+			if (segmentLive[segment] == 0)
+				freeSegments.add(segment);
+		}
+
+		currentSegment = freeSegments.removeFirst();
+		currentSeq = nextSeq;
+		segmentUsed = 1;
+		segmentWritten = 1;
+
+		checkpoint();
+
+		cleaner = new KThread(new Runnable() {
+			public void run() {
+				runCleaner();
+			}
+		}).setName("log cleaner");
+		cleaner.fork();
+	}
+
+	/**
+	 * Apply the summaries of the segments written after a checkpoint, starting
+	 * at <tt>segment</tt>. Returns the sequence number of the first segment
+	 * that was not found.
+	 */
+	private int rollForward(int segment, int seq) {
+		byte[] summary = new byte[blockSize];
+		byte[] block = new byte[blockSize];
+
+		while (segment >= 0 && segment < numSegments) {
+			int base = segmentBase(segment);
+			disk.readSectors(base * sectorsPerBlock, summary, 0, sectorsPerBlock);
+
+			if (Lib.bytesToInt(summary, 0) != summaryMagic
+					|| Lib.bytesToInt(summary, 4) != seq)
+				break;
+
+			int count = Lib.bytesToInt(summary, 12);
+			for (int slot = 1; slot <= count; slot++) {
+				int inum = Lib.bytesToInt(summary, 4 + 12 * slot);
+				int index = Lib.bytesToInt(summary, 8 + 12 * slot);
+				int length = Lib.bytesToInt(summary, 12 + 12 * slot);
+
+				if (index >= 0) {
+					Inode inode = getInode(inum);
+					inode.blocks[index] = base + slot;
+					inode.length = length;
+					inode.dirty = true;
+				}
+				else if (index == inodeEntry) {
+					readBlock(base + slot, block, 0);
+					Inode inode = parseInode(block, base + slot);
+					inode.dirty = true;
+					inodes.put(inum, inode);
+					imap[inum] = base + slot;
+				}
+			}
+
+			numSegmentsRolled++;
+			segment = Lib.bytesToInt(summary, 8);
+			seq++;
+		}
+
+		return seq;
+	}
+
+	/**
+	 * Recompute how many live blocks each segment holds from the inode map.
+	 */
+	private void countLiveBlocks() {
+		for (int i = 0; i < imapBlocks; i++)
+			countBlock(imapAddress[i]);
+
+		for (int inum = 0; inum < maxFiles; inum++) {
+			if (imap[inum] == 0 && !inodes.containsKey(inum))
+				continue;
+
+			Inode inode = getInode(inum);
+			countBlock(imap[inum]);
+			countBlock(inode.indirectAddress);
+			for (int i = 0; i < maxFileBlocks; i++)
+				countBlock(inode.blocks[i]);
+		}
+	}
+
+	private void countBlock(int address) {
+		if (address != 0) {
+			segmentLive[segmentOf(address)]++;
+			totalLive++;
+		}
+	}
+
+	private byte[] importFromStub(String name) {
+		FileSystem stub = Machine.stubFileSystem();
+		if (stub == null)
+			return null;
+
+		OpenFile file = stub.open(name, false);
+		if (file == null)
+			return null;
+
+		byte[] contents = new byte[Math.max(0, file.length())];
+		int amount = file.read(0, contents, 0, contents.length);
+		file.close();
+
+		return amount == contents.length ? contents : null;
+	}
+
+	private Inode createFile(String name) {
+		if (name.length() == 0 || !hasSpace(3))
+			return null;
+
+		int inum = 1;
+		while (inum < maxFiles
+				&& (imap[inum] != 0 || inodes.containsKey(inum)))
+			inum++;
+		if (inum == maxFiles)
+			return null;
+
+		Inode inode = new Inode(inum);
+		inodes.put(inum, inode);
+		writeInode(inode);
+
+		directory.put(name, inum);
+		writeDirectory();
+
+		return inode;
+	}
+
+	private boolean removeFile(String name) {
+		Integer inum = directory.remove(name);
+		if (inum == null)
+			return false;
+
+		writeDirectory();
+
+		Inode inode = getInode(inum);
+		inode.removed = true;
+		if (inode.openCount == 0)
+			freeInode(inode);
+
+		return true;
+	}
+
+	private void close(Inode inode) {
+		lock.acquire();
+
+		Lib.assertTrue(inode.openCount > 0);
+		inode.openCount--;
+		openCount--;
+
+		if (inode.removed && inode.openCount == 0)
+			freeInode(inode);
+
+		finishOperation();
+		lock.release();
+	}
+
+	private void freeInode(Inode inode) {
+		truncate(inode, 0);
+		kill(inode.indirectAddress);
+		kill(imap[inode.inum]);
+
+		imap[inode.inum] = 0;
+		imapBlockDirty[inode.inum * 4 / blockSize] = true;
+		inodes.remove(inode.inum);
+	}
+
+	private void truncate(Inode inode, int length) {
+		for (int i = (length + blockSize - 1) / blockSize; i < maxFileBlocks; i++) {
+			kill(inode.blocks[i]);
+			inode.blocks[i] = 0;
+		}
+
+		inode.length = length;
+		inode.dirty = true;
+	}
+
+	private int read(Inode inode, int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		lock.acquire();
+		int amount = readData(inode, pos, buf, offset, length);
+		lock.release();
+
+		return amount;
+	}
+
+	private int write(Inode inode, int pos, byte[] buf, int offset, int length) {
+		if (pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		lock.acquire();
+
+		int amount = writeData(inode, pos, buf, offset, length);
+
+		finishOperation();
+		lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Read file data, fetching each run of blocks that lie next to each other
+	 * on the disk with a single request.
+	 */
+	private int readData(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		int end = Math.min(pos + length, inode.length);
+		int amount = 0;
+
+		while (pos < end) {
+			int first = pos / blockSize;
+			int last = (end - 1) / blockSize;
+			int address = inode.blocks[first];
+
+			int count = 1;
+			while (first + count <= last && address != 0
+					&& !inSegmentBuffer(address)
+					&& inode.blocks[first + count] == address + count
+					&& !inSegmentBuffer(address + count))
+				count++;
+
+			byte[] data = new byte[count * blockSize];
+			if (count == 1)
+				readBlock(address, data, 0);
+			else
+				disk.readSectors(address * sectorsPerBlock, data, 0, count
+						* sectorsPerBlock);
+
+			int blockOffset = pos % blockSize;
+			int n = Math.min(count * blockSize - blockOffset, end - pos);
+			System.arraycopy(data, blockOffset, buf, offset + amount, n);
+
+			pos += n;
+			amount += n;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Write file data. Blocks still in the segment buffer are updated in
+	 * place; others are appended to the log.
+	 */
+	private int writeData(Inode inode, int pos, byte[] buf, int offset,
+			int length) {
+		if ((long) pos + length > (long) maxFileBlocks * blockSize)
+			return -1;
+
+		int firstBlock = pos / blockSize;
+		int lastBlock = (pos + length - 1) / blockSize;
+		if (length > 0 && !hasSpace(lastBlock - firstBlock + 3))
+			return -1;
+
+		byte[] data = new byte[blockSize];
+		int amount = 0;
+
+		while (amount < length) {
+			int index = pos / blockSize;
+			int blockOffset = pos % blockSize;
+			int n = Math.min(blockSize - blockOffset, length - amount);
+			int newLength = Math.max(inode.length, pos + n);
+			int address = inode.blocks[index];
+
+			if (canUpdateInPlace(address, inode.inum)) {
+				int slot = address - segmentBase(currentSegment);
+				System.arraycopy(buf, offset + amount, segmentBuffer, slot
+						* blockSize + blockOffset, n);
+				entryLength[slot] = newLength;
+				segmentWritten = Math.min(segmentWritten, slot);
+			}
+			else {
+				if (n < blockSize)
+					readBlock(address, data, 0);
+				System.arraycopy(buf, offset + amount, data, blockOffset, n);
+
+				int newAddress = appendBlock(data, 0, inode.inum, index,
+						newLength);
+				kill(inode.blocks[index]);
+				inode.blocks[index] = newAddress;
+			}
+
+			inode.length = Math.max(inode.length, newLength);
+			inode.dirty = true;
+
+			pos += n;
+			amount += n;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the block at <tt>address</tt> can be rewritten
+	 * where it is. It must still be in the segment buffer, and no inode for
+	 * the same file may follow it there, since roll-forward would replay that
+	 * inode's older length over the new write.
+	 */
+	private boolean canUpdateInPlace(int address, int inum) {
+		if (!inSegmentBuffer(address))
+			return false;
+
+		for (int slot = address - segmentBase(currentSegment) + 1; slot < segmentUsed; slot++) {
+			if (entryInum[slot] == inum && entryIndex[slot] == inodeEntry)
+				return false;
+		}
+		return true;
+	}
+
+	private void readBlock(int address, byte[] buf, int offset) {
+		if (address == 0) {
+			for (int i = 0; i < blockSize; i++)
+				buf[offset + i] = 0;
+		}
+		else if (inSegmentBuffer(address)) {
+			System.arraycopy(segmentBuffer, (address - segmentBase(currentSegment))
+					* blockSize, buf, offset, blockSize);
+		}
+		else {
+			disk.readSectors(address * sectorsPerBlock, buf, offset,
+					sectorsPerBlock);
+		}
+	}
+
+	private Inode getInode(int inum) {
+		Inode inode = inodes.get(inum);
+		if (inode != null)
+			return inode;
+
+		if (imap[inum] == 0) {
+			inode = new Inode(inum);
+		}
+		else {
+			byte[] block = new byte[blockSize];
+			readBlock(imap[inum], block, 0);
+			inode = parseInode(block, imap[inum]);
+		}
+
+		inodes.put(inum, inode);
+		return inode;
+	}
+
+	private Inode parseInode(byte[] block, int address) {
+		Inode inode = new Inode(Lib.bytesToInt(block, 0));
+		inode.length = Lib.bytesToInt(block, 4);
+		inode.indirectAddress = Lib.bytesToInt(block, 8);
+
+		for (int i = 0; i < numDirect; i++)
+			inode.blocks[i] = Lib.bytesToInt(block, 12 + 4 * i);
+
+		if (inode.indirectAddress != 0) {
+			byte[] indirect = new byte[blockSize];
+			readBlock(inode.indirectAddress, indirect, 0);
+			for (int i = 0; i < blockSize / 4; i++)
+				inode.blocks[numDirect + i] = Lib.bytesToInt(indirect, 4 * i);
+		}
+
+		inode.dirty = false;
+		return inode;
+	}
+
+	/**
+	 * Append <tt>inode</tt>, and its indirect block if it needs one, to the
+	 * log.
+	 */
+	private void writeInode(Inode inode) {
+		inode.dirty = false;
+
+		boolean indirect = false;
+		byte[] block = new byte[blockSize];
+		for (int i = 0; i < blockSize / 4; i++) {
+			Lib.bytesFromInt(block, 4 * i, inode.blocks[numDirect + i]);
+			indirect |= inode.blocks[numDirect + i] != 0;
+		}
+
+		int indirectAddress = 0;
+		if (indirect)
+			indirectAddress = appendBlock(block, 0, inode.inum, indirectEntry,
+					inode.length);
+		kill(inode.indirectAddress);
+		inode.indirectAddress = indirectAddress;
+
+		Lib.bytesFromInt(block, 0, inode.inum);
+		Lib.bytesFromInt(block, 4, inode.length);
+		Lib.bytesFromInt(block, 8, inode.indirectAddress);
+		for (int i = 0; i < numDirect; i++)
+			Lib.bytesFromInt(block, 12 + 4 * i, inode.blocks[i]);
+
+		int address = appendBlock(block, 0, inode.inum, inodeEntry,
+				inode.length);
+		kill(imap[inode.inum]);
+		imap[inode.inum] = address;
+		imapBlockDirty[inode.inum * 4 / blockSize] = true;
+	}
+
+	private void writeImapBlock(int i) {
+		imapBlockDirty[i] = false;
+
+		byte[] block = new byte[blockSize];
+		for (int j = 0; j < blockSize / 4 && i * blockSize / 4 + j < maxFiles; j++)
+			Lib.bytesFromInt(block, 4 * j, imap[i * blockSize / 4 + j]);
+
+		int address = appendBlock(block, 0, i, imapEntry, 0);
+		kill(imapAddress[i]);
+		imapAddress[i] = address;
+	}
+
+	private void readDirectory() {
+		Inode inode = getInode(0);
+		byte[] data = new byte[inode.length];
+		readData(inode, 0, data, 0, data.length);
+
+		directory.clear();
+		if (data.length == 0)
+			return;
+
+		int count = Lib.bytesToInt(data, 0);
+		int offset = 4;
+		for (int i = 0; i < count; i++) {
+			int inum = Lib.bytesToInt(data, offset);
+			int length = Lib.bytesToInt(data, offset + 4);
+			directory.put(new String(data, offset + 8, length), inum);
+			offset += 8 + length;
+		}
+	}
+
+	/**
+	 * Write the directory to file 0. The directory starts with its entry
+	 * count, so a stale tail left after a crash is ignored.
+	 */
+	private void writeDirectory() {
+		int size = 4;
+		for (String name : directory.keySet())
+			size += 8 + name.getBytes().length;
+
+		byte[] data = new byte[size];
+		Lib.bytesFromInt(data, 0, directory.size());
+		int offset = 4;
+		for (Map.Entry<String, Integer> entry : directory.entrySet()) {
+			byte[] name = entry.getKey().getBytes();
+			Lib.bytesFromInt(data, offset, entry.getValue());
+			Lib.bytesFromInt(data, offset + 4, name.length);
+			System.arraycopy(name, 0, data, offset + 8, name.length);
+			offset += 8 + name.length;
+		}
+
+		Inode inode = getInode(0);
+		writeData(inode, 0, data, 0, data.length);
+		truncate(inode, data.length);
+	}
+
+	/**
+	 * Append a block to the segment buffer, sealing the segment first if it
+	 * is full. Returns the block's disk address.
+	 */
+	private int appendBlock(byte[] data, int offset, int inum, int index,
+			int length) {
+		while (segmentUsed == segmentBlocks)
+			flushSegment();
+
+		int slot = segmentUsed++;
+		System.arraycopy(data, offset, segmentBuffer, slot * blockSize,
+				blockSize);
+		entryInum[slot] = inum;
+		entryIndex[slot] = index;
+		entryLength[slot] = length;
+
+		segmentLive[currentSegment]++;
+		totalLive++;
+
+		return segmentBase(currentSegment) + slot;
+	}
+
+	/**
+	 * Seal the full segment buffer, writing out whatever part of it is not
+	 * on the disk yet, and start filling the next segment.
+	 */
+	private void flushSegment() {
+		ensureNextSegment();
+
+		// another thread may have sealed the segment while we waited
+		if (segmentUsed < segmentBlocks)
+			return;
+
+		writeSegment(nextSegment);
+		numSegmentsWritten++;
+
+		int sealed = currentSegment;
+		currentSegment = nextSegment;
+		nextSegment = -1;
+		currentSeq++;
+		segmentUsed = 1;
+		segmentWritten = 1;
+		segmentsSinceCheckpoint++;
+
+		if (segmentLive[sealed] == 0)
+			pendingFree.add(sealed);
+
+		if (freeSegments.size() < cleanLowWater)
+			cleanerCV.wake();
+	}
+
+	/**
+	 * Write the summary and the blocks of the segment buffer that are not on
+	 * the disk yet. The segment keeps filling afterwards; a partial segment's
+	 * summary has no successor, so roll-forward stops there.
+	 */
+	private void writeSegment(int next) {
+		Lib.bytesFromInt(segmentBuffer, 0, summaryMagic);
+		Lib.bytesFromInt(segmentBuffer, 4, currentSeq);
+		Lib.bytesFromInt(segmentBuffer, 8, next);
+		Lib.bytesFromInt(segmentBuffer, 12, segmentUsed - 1);
+		for (int slot = 1; slot < segmentUsed; slot++) {
+			Lib.bytesFromInt(segmentBuffer, 4 + 12 * slot, entryInum[slot]);
+			Lib.bytesFromInt(segmentBuffer, 8 + 12 * slot, entryIndex[slot]);
+			Lib.bytesFromInt(segmentBuffer, 12 + 12 * slot, entryLength[slot]);
+		}
+
+		int base = segmentBase(currentSegment) * sectorsPerBlock;
+
+		if (segmentWritten == 1) {
+			disk.writeSectors(base, segmentBuffer, 0, segmentUsed
+					* sectorsPerBlock);
+		}
+		else {
+			disk.writeSectors(base, segmentBuffer, 0, sectorsPerBlock);
+			if (segmentWritten < segmentUsed)
+				disk.writeSectors(base + segmentWritten * sectorsPerBlock,
+						segmentBuffer, segmentWritten * blockSize,
+						(segmentUsed - segmentWritten) * sectorsPerBlock);
+		}
+
+		if (next == -1)
+			numPartialWrites++;
+		segmentWritten = segmentUsed;
+	}
+
+	/**
+	 * Choose the segment that will follow the current one, so that the
+	 * current segment's summary can point to it. Only the cleaner may take
+	 * the last <tt>reserveSegments</tt> free segments.
+	 */
+	private void ensureNextSegment() {
+		while (nextSegment == -1) {
+			int reserve = KThread.currentThread() == cleaner ? 0
+					: reserveSegments;
+
+			if (freeSegments.size() > reserve) {
+				nextSegment = freeSegments.removeFirst();
+			}
+			else {
+				Lib.assertTrue(KThread.currentThread() != cleaner);
+				cleanerCV.wake();
+				segmentFreed.sleep();
+			}
+		}
+	}
+
+	/**
+	 * Note that the block at <tt>address</tt> is no longer referenced.
+	 */
+	private void kill(int address) {
+		if (address == 0)
+			return;
+
+		int segment = segmentOf(address);
+		segmentLive[segment]--;
+		totalLive--;
+		Lib.assertTrue(segmentLive[segment] >= 0);
+
+		if (segmentLive[segment] == 0 && segment != currentSegment
+				&& segment != nextSegment)
+			pendingFree.add(segment);
+	}
+
+	/**
+	 * Return <tt>true</tt> if <tt>blocks</tt> more live blocks fit on the
+	 * disk while leaving the cleaner room to work.
+	 */
+	private boolean hasSpace(int blocks) {
+		int capacity = (numSegments - reserveSegments - 1) * (segmentBlocks - 1);
+		return totalLive + blocks <= capacity;
+	}
+
+	/**
+	 * Append the dirty inodes and the inode map to the log, write the
+	 * segment buffer, and record the head of the log in the older checkpoint
+	 * region. Segments emptied before the checkpoint started become free.
+	 */
+	private void checkpoint() {
+		ArrayList<Integer> emptied = new ArrayList<Integer>(pendingFree);
+		pendingFree.clear();
+
+		for (Inode inode : new ArrayList<Inode>(inodes.values())) {
+			if (inode.dirty)
+				writeInode(inode);
+		}
+
+		for (int i = 0; i < imapBlocks; i++) {
+			if (imapBlockDirty[i] || imapAddress[i] == 0)
+				writeImapBlock(i);
+		}
+
+		if (segmentWritten < segmentUsed)
+			writeSegment(-1);
+
+		byte[] region = new byte[blockSize];
+		checkpointSeq++;
+		Lib.bytesFromInt(region, 0, checkpointMagic);
+		Lib.bytesFromInt(region, 4, checkpointSeq);
+		Lib.bytesFromInt(region, 8, currentSegment);
+		Lib.bytesFromInt(region, 12, currentSeq);
+		for (int i = 0; i < imapBlocks; i++)
+			Lib.bytesFromInt(region, 16 + 4 * i, imapAddress[i]);
+		Lib.bytesFromInt(region, 16 + 4 * imapBlocks, checkpointSeq);
+
+		disk.writeSectors(checkpointRegion * sectorsPerBlock, region, 0,
+				sectorsPerBlock);
+		checkpointRegion = 1 - checkpointRegion;
+
+		freeSegments.addAll(emptied);
+		segmentsSinceCheckpoint = 0;
+		numCheckpoints++;
+
+		segmentFreed.wakeAll();
+	}
+
+	private void finishOperation() {
+		if (segmentsSinceCheckpoint >= checkpointInterval)
+			checkpoint();
+	}
+
+	private void runCleaner() {
+		lock.acquire();
+
+		while (true) {
+			while (freeSegments.size() >= cleanLowWater)
+				cleanerCV.sleep();
+
+			int freeBefore = freeSegments.size();
+
+			for (int i = 0; i < numSegments
+					&& freeSegments.size() + pendingFree.size() < cleanHighWater; i++) {
+				int victim = chooseVictimSegment();
+				if (victim == -1 || !hasCleaningRoom(segmentLive[victim]))
+					break;
+				cleanSegment(victim);
+			}
+
+			if (!pendingFree.isEmpty())
+				checkpoint();
+
+			// no progress; wait until a writer asks again
+			if (freeSegments.size() <= freeBefore)
+				cleanerCV.sleep();
+		}
+	}
+
+	/**
+	 * Return <tt>true</tt> if the log has room to copy <tt>live</tt> blocks,
+	 * rewrite the inodes that point to them, and checkpoint afterwards.
+	 */
+	private boolean hasCleaningRoom(int live) {
+		int dirtyInodes = 0;
+		for (Inode inode : inodes.values()) {
+			if (inode.dirty)
+				dirtyInodes++;
+		}
+
+		int room = segmentBlocks - segmentUsed + freeSegments.size()
+				* (segmentBlocks - 1);
+		return room >= 3 * live + 2 * dirtyInodes + imapBlocks;
+	}
+
+	/**
+	 * Return the written segment with the fewest live blocks, or -1 if
+	 * cleaning would gain nothing.
+	 */
+	private int chooseVictimSegment() {
+		boolean[] unavailable = new boolean[numSegments];
+		for (int segment : freeSegments)
+			unavailable[segment] = true;
+		for (int segment : pendingFree)
+			unavailable[segment] = true;
+		unavailable[currentSegment] = true;
+		if (nextSegment != -1)
+			unavailable[nextSegment] = true;
+
+		int victim = -1;
+		for (int segment = 0; segment < numSegments; segment++) {
+			if (unavailable[segment]
+					|| segmentLive[segment] >= segmentBlocks - 1)
+				continue;
+			if (victim == -1 || segmentLive[segment] < segmentLive[victim])
+				victim = segment;
+		}
+		return victim;
+	}
+
+	/**
+	 * Copy the live blocks of <tt>segment</tt> to the head of the log.
+	 */
+	private void cleanSegment(int segment) {
+		int base = segmentBase(segment);
+		byte[] data = new byte[segmentBlocks * blockSize];
+		disk.readSectors(base * sectorsPerBlock, data, 0, segmentBlocks
+				* sectorsPerBlock);
+
+		int count = Lib.bytesToInt(data, 0) == summaryMagic ? Lib.bytesToInt(
+				data, 12) : 0;
+
+		for (int slot = 1; slot <= count; slot++) {
+			int address = base + slot;
+			int inum = Lib.bytesToInt(data, 4 + 12 * slot);
+			int index = Lib.bytesToInt(data, 8 + 12 * slot);
+
+			if (index == imapEntry) {
+				if (imapAddress[inum] == address)
+					writeImapBlock(inum);
+				continue;
+			}
+
+			if (imap[inum] == 0 && !inodes.containsKey(inum))
+				continue;
+
+			Inode inode = getInode(inum);
+
+			if (index >= 0) {
+				if (inode.blocks[index] != address)
+					continue;
+
+				int newAddress = appendBlock(data, slot * blockSize, inum,
+						index, inode.length);
+				if (inode.blocks[index] == address) {
+					kill(address);
+					inode.blocks[index] = newAddress;
+					inode.dirty = true;
+				}
+				else {
+					kill(newAddress);
+				}
+				numBlocksCopied++;
+			}
+			else if ((index == inodeEntry && imap[inum] == address)
+					|| (index == indirectEntry && inode.indirectAddress == address)) {
+				writeInode(inode);
+				numBlocksCopied++;
+			}
+		}
+
+		numSegmentsCleaned++;
+	}
+
+	private int segmentBase(int segment) {
+		return firstSegmentBlock + segment * segmentBlocks;
+	}
+
+	private int segmentOf(int address) {
+		return (address - firstSegmentBlock) / segmentBlocks;
+	}
+
+	private boolean inSegmentBuffer(int address) {
+		int slot = address - segmentBase(currentSegment);
+		return address != 0 && slot > 0 && slot < segmentUsed;
+	}
+
+	/**
+	 * Test crash recovery and the cleaner on a fresh disk.
+	 */
+	public static void selfTest() {
+		SynchDisk disk = new SynchDisk();
+		LogFileSystem fs = new LogFileSystem(disk);
+
+		byte[] a = new byte[5000], b = new byte[3000];
+		for (int i = 0; i < a.length; i++)
+			a[i] = (byte) i;
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) (i * 7);
+
+		OpenFile file = fs.open("lfsTestA", true);
+		Lib.assertTrue(file.write(a, 0, a.length) == a.length);
+		file.close();
+
+		fs.lock.acquire();
+		fs.checkpoint();
+		fs.lock.release();
+
+		file = fs.open("lfsTestB", true);
+		Lib.assertTrue(file.write(b, 0, b.length) == b.length);
+		file.close();
+
+		// crash once B is in the log but before the next checkpoint
+		fs.lock.acquire();
+		fs.writeSegment(-1);
+		fs.lock.release();
+
+		LogFileSystem recovered = new LogFileSystem(disk);
+		byte[] buf = new byte[a.length];
+
+		file = recovered.open("lfsTestA", false);
+		Lib.assertTrue(file.read(buf, 0, a.length) == a.length);
+		Lib.assertTrue(java.util.Arrays.equals(buf, a));
+		file.close();
+
+		file = recovered.open("lfsTestB", false);
+		Lib.assertTrue(file.length() == b.length);
+		Lib.assertTrue(file.read(buf, 0, b.length) == b.length);
+		for (int i = 0; i < b.length; i++)
+			Lib.assertTrue(buf[i] == b[i]);
+		file.close();
+
+		Lib.assertTrue(recovered.numSegmentsRolled > 0);
+
+		// overwrite a file until the log has wrapped around several times
+		int capacity = (recovered.numSegments - reserveSegments - 1)
+				* (recovered.segmentBlocks - 1);
+		int size = Math.min(2 * recovered.segmentBlocks, capacity / 3)
+				* recovered.blockSize;
+		byte[] c = new byte[size];
+		file = recovered.open("lfsTestC", true);
+		for (int round = 0; round < 4 * recovered.numSegments; round++) {
+			for (int i = 0; i < c.length; i++)
+				c[i] = (byte) (round + i);
+			Lib.assertTrue(file.write(0, c, 0, c.length) == c.length);
+		}
+		file.close();
+
+		file = recovered.open("lfsTestC", false);
+		byte[] check = new byte[size];
+		Lib.assertTrue(file.read(check, 0, size) == size);
+		Lib.assertTrue(java.util.Arrays.equals(check, c));
+		file.close();
+
+		Lib.assertTrue(recovered.numSegmentsCleaned > 0);
+
+		recovered.remove("lfsTestA");
+		recovered.remove("lfsTestB");
+		recovered.remove("lfsTestC");
+
+		System.out.println("LogFileSystem.selfTest passed");
+		recovered.print();
+	}
+
+	/**
+	 * A file's inode, held in memory while the file system is mounted.
+	 */
+	private class Inode {
+		Inode(int inum) {
+			this.inum = inum;
+		}
+
+		int inum;
+
+		int length = 0;
+
+		/** The disk address of each block of the file, or 0 for a hole. */
+		int[] blocks = new int[maxFileBlocks];
+
+		int indirectAddress = 0;
+
+		/** Set if the inode differs from its copy in the log. */
+		boolean dirty = true;
+
+		int openCount = 0;
+
+		/** Set once the file is unlinked; freed when the last handle closes. */
+		boolean removed = false;
+	}
+
+	private class LogOpenFile extends OpenFileWithPosition {
+		LogOpenFile(String name, Inode inode) {
+			super(LogFileSystem.this, name);
+			this.inode = inode;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			return LogFileSystem.this.read(inode, pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			return LogFileSystem.this.write(inode, pos, buf, offset, length);
+		}
+
+		public int length() {
+			return inode.length;
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				LogFileSystem.this.close(inode);
+			}
+		}
+
+		private Inode inode;
+
+		private boolean open = true;
+	}
+
+	private SynchDisk disk;
+
+	private int blockSize;
+
+	private int sectorsPerBlock;
+
+	private int segmentBlocks;
+
+	private int numSegments;
+
+	private int maxFiles;
+
+	private int numDirect;
+
+	private int maxFileBlocks;
+
+	private int imapBlocks;
+
+	private int checkpointInterval;
+
+	private boolean mounted = false;
+
+	/** The disk address of each file's inode, or 0 if the file is free. */
+	private int[] imap;
+
+	private int[] imapAddress;
+
+	private boolean[] imapBlockDirty;
+
+	private HashMap<Integer, Inode> inodes = new HashMap<Integer, Inode>();
+
+	private HashMap<String, Integer> directory = new HashMap<String, Integer>();
+
+	private int openCount = 0;
+
+	private byte[] segmentBuffer;
+
+	private int[] entryInum, entryIndex, entryLength;
+
+	private int currentSegment;
+
+	private int nextSegment = -1;
+
+	private int currentSeq;
+
+	/** Blocks used in the segment buffer, counting the summary block. */
+	private int segmentUsed;
+
+	/** The first block of the segment buffer that is not on the disk. */
+	private int segmentWritten;
+
+	private int[] segmentLive;
+
+	private long totalLive = 0;
+
+	private LinkedList<Integer> freeSegments = new LinkedList<Integer>();
+
+	/** Segments with no live blocks that are freed by the next checkpoint. */
+	private LinkedList<Integer> pendingFree = new LinkedList<Integer>();
+
+	private int checkpointSeq = 0;
+
+	private int checkpointRegion = 0;
+
+	private int segmentsSinceCheckpoint = 0;
+
+	private KThread cleaner = null;
+
+	private Lock lock = new Lock();
+
+	private Condition cleanerCV = new Condition(lock);
+
+	private Condition segmentFreed = new Condition(lock);
+
+	private int numSegmentsWritten = 0;
+
+	private int numPartialWrites = 0;
+
+	private int numSegmentsCleaned = 0;
+
+	private int numBlocksCopied = 0;
+
+	private int numCheckpoints = 0;
+
+	private int numSegmentsRolled = 0;
+
+	private static final int firstSegmentBlock = 2;
+
+	private static final int reserveSegments = 2;
+
+	private static final int cleanLowWater = reserveSegments + 1;
+
+	private static final int cleanHighWater = reserveSegments + 3;
+
+	private static final int summaryMagic = 0x4c465353;
+
+	private static final int checkpointMagic = 0x4c465343;
+
+	private static final int inodeEntry = -1;
+
+	private static final int indirectEntry = -2;
+
+	private static final int imapEntry = -3;
+}
@@ -0,0 +1,42 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+/**
+ * An elevator disk scheduler. The head sweeps in one direction, servicing
+ * the nearest request ahead of it, and reverses once no requests remain in
+ * that direction. Like LOOK, it turns around at the last request rather than
+ * at the edge of the disk.
+ */
+public class SCANDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new SCAN disk scheduler.
+	 */
+	public SCANDiskScheduler() {
+	}
+
+	public DiskRequest nextRequest(LinkedList<DiskRequest> queue, int head) {
+		DiskRequest next = nearestAhead(queue, head);
+		if (next == null) {
+			ascending = !ascending;
+			next = nearestAhead(queue, head);
+		}
+		return next;
+	}
+
+	private DiskRequest nearestAhead(LinkedList<DiskRequest> queue, int head) {
+		DiskRequest best = null;
+		for (DiskRequest request : queue) {
+			int distance = ascending ? request.sector - head : head
+					- request.sector;
+			if (distance < 0)
+				continue;
+			if (best == null
+					|| distance < Math.abs(best.sector - head))
+				best = request;
+		}
+		return best;
+	}
+
+	private boolean ascending = true;
+}
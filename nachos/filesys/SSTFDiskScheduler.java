@@ -0,0 +1,25 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+/**
+ * A disk scheduler that services the request closest to the disk head next.
+ * Ties go to the request that arrived first.
+ */
+public class SSTFDiskScheduler extends DiskScheduler {
+	/**
+	 * Allocate a new SSTF disk scheduler.
+	 */
+	public SSTFDiskScheduler() {
+	}
+
+	public DiskRequest nextRequest(LinkedList<DiskRequest> queue, int head) {
+		DiskRequest best = null;
+		for (DiskRequest request : queue) {
+			if (best == null || Math.abs(request.sector - head) < Math
+					.abs(best.sector - head))
+				best = request;
+		}
+		return best;
+	}
+}
@@ -0,0 +1,348 @@
+package nachos.filesys;
+
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A simulated disk with synchronous sector reads and writes. The disk has
+ * <tt>SynchDisk.numTracks</tt> tracks of <tt>SynchDisk.sectorsPerTrack</tt>
+ * sectors, each <tt>SynchDisk.sectorSize</tt> bytes long. Its contents are
+ * kept in the host file named by <tt>SynchDisk.image</tt> in the test
+ * directory, which is read on first use and rewritten by <tt>sync()</tt>.
+ *
+ * <p>
+ * Requests are queued and serviced one batch at a time by a disk controller
+ * thread, in the order chosen by the <tt>DiskScheduler</tt> class named by
+ * <tt>SynchDisk.scheduler</tt>. Pending requests in the same direction that
+ * extend the chosen one are merged into its batch. Each batch takes the time
+ * to seek to its first track (<tt>Stats.SeekTime</tt> per track), to rotate
+ * to its first sector, and to pass its sectors under the head, where a full
+ * rotation takes <tt>Stats.RotationTime</tt>. The controller waits that long
+ * on the alarm, so a batch completes on the timer interrupt that follows.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new disk.
+	 */
+	public SynchDisk() {
+		sectorSize = Config.getInteger("SynchDisk.sectorSize", 128);
+		sectorsPerTrack = Config.getInteger("SynchDisk.sectorsPerTrack", 32);
+		numTracks = Config.getInteger("SynchDisk.numTracks", 32);
+		Lib.assertTrue(sectorSize > 0 && sectorsPerTrack > 0 && numTracks > 0);
+
+		numSectors = sectorsPerTrack * numTracks;
+		imageName = Config.getString("SynchDisk.image", "disk");
+
+		String schedulerName = Config.getString("SynchDisk.scheduler",
+				"nachos.filesys.CLOOKDiskScheduler");
+		scheduler = (DiskScheduler) Lib.constructObject(schedulerName);
+	}
+
+	/**
+	 * Return the number of bytes in a sector.
+	 *
+	 * @return the number of bytes in a sector.
+	 */
+	public int getSectorSize() {
+		return sectorSize;
+	}
+
+	/**
+	 * Return the number of sectors on the disk.
+	 *
+	 * @return the number of sectors on the disk.
+	 */
+	public int getNumSectors() {
+		return numSectors;
+	}
+
+	/**
+	 * Read <tt>count</tt> sectors starting at <tt>sector</tt> into
+	 * <tt>buf</tt>, starting at <tt>offset</tt>. Blocks until the read has
+	 * completed.
+	 *
+	 * @param sector the first sector to read.
+	 * @param buf the buffer to store the sectors in.
+	 * @param offset the offset in <tt>buf</tt> of the first byte read.
+	 * @param count the number of sectors to read.
+	 */
+	public void readSectors(int sector, byte[] buf, int offset, int count) {
+		transfer(new DiskRequest(sector, count, false, buf, offset));
+	}
+
+	/**
+	 * Write <tt>count</tt> sectors starting at <tt>sector</tt> from
+	 * <tt>buf</tt>, starting at <tt>offset</tt>. Blocks until the write has
+	 * completed.
+	 *
+	 * @param sector the first sector to write.
+	 * @param buf the buffer holding the data to write.
+	 * @param offset the offset in <tt>buf</tt> of the first byte written.
+	 * @param count the number of sectors to write.
+	 */
+	public void writeSectors(int sector, byte[] buf, int offset, int count) {
+		transfer(new DiskRequest(sector, count, true, buf, offset));
+	}
+
+	/**
+	 * Write the disk's contents back to its image file.
+	 */
+	public void sync() {
+		lock.acquire();
+
+		if (contents != null) {
+			OpenFile image = Machine.stubFileSystem().open(imageName, true);
+			if (image != null) {
+				image.write(0, contents, 0, contents.length);
+				image.close();
+			}
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Print the disk's request and latency counts.
+	 */
+	public void print() {
+		System.out.println("Disk: requests " + numRequests + ", batches "
+				+ numBatches + ", sectors read " + numSectorsRead
+				+ ", sectors written " + numSectorsWritten + ", tracks seeked "
+				+ numTracksSeeked + ", busy ticks " + busyTicks);
+	}
+
+	private void transfer(DiskRequest request) {
+		Lib.assertTrue(request.count > 0 && request.sector >= 0
+				&& request.sector + request.count <= numSectors);
+		Lib.assertTrue(request.offset >= 0
+				&& request.offset + request.count * sectorSize <= request.data.length);
+
+		lock.acquire();
+
+		if (controller == null) {
+			controller = new KThread(new Runnable() {
+				public void run() {
+					runController();
+				}
+			}).setName("disk controller");
+			controller.fork();
+		}
+
+		queue.add(request);
+		numRequests++;
+		requestPending.wake();
+
+		lock.release();
+
+		request.done.P();
+	}
+
+	private void runController() {
+		lock.acquire();
+
+		if (contents == null)
+			loadImage();
+
+		while (true) {
+			while (queue.isEmpty())
+				requestPending.sleep();
+
+			LinkedList<DiskRequest> batch = nextBatch();
+			int first = batch.getFirst().sector;
+			DiskRequest last = batch.getLast();
+			int count = last.sector + last.count - first;
+
+			long latency = latency(first, count);
+			headSector = first + count;
+			numBatches++;
+			busyTicks += latency;
+
+			lock.release();
+			ThreadedKernel.alarm.waitUntil(latency);
+			lock.acquire();
+
+			for (DiskRequest request : batch) {
+				int position = request.sector * sectorSize;
+				int length = request.count * sectorSize;
+
+				if (request.write) {
+					System.arraycopy(request.data, request.offset, contents,
+							position, length);
+					numSectorsWritten += request.count;
+				}
+				else {
+					System.arraycopy(contents, position, request.data,
+							request.offset, length);
+					numSectorsRead += request.count;
+				}
+
+				request.done.V();
+			}
+		}
+	}
+
+	/**
+	 * Remove the scheduler's choice from the queue, along with every pending
+	 * request in the same direction that continues it on either side. Returns
+	 * the batch in sector order.
+	 */
+	private LinkedList<DiskRequest> nextBatch() {
+		DiskRequest chosen = scheduler.nextRequest(queue, headSector);
+		queue.remove(chosen);
+
+		LinkedList<DiskRequest> batch = new LinkedList<DiskRequest>();
+		batch.add(chosen);
+
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+
+			for (DiskRequest request : queue) {
+				if (request.write != chosen.write)
+					continue;
+
+				DiskRequest first = batch.getFirst(), last = batch.getLast();
+				if (request.sector == last.sector + last.count)
+					batch.addLast(request);
+				else if (request.sector + request.count == first.sector)
+					batch.addFirst(request);
+				else
+					continue;
+
+				queue.remove(request);
+				merged = true;
+				break;
+			}
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Return the time to transfer <tt>count</tt> sectors starting at
+	 * <tt>sector</tt>, starting now, and move the head to the last track
+	 * transferred.
+	 */
+	private long latency(int sector, int count) {
+		int track = sector / sectorsPerTrack;
+		int lastTrack = (sector + count - 1) / sectorsPerTrack;
+
+		numTracksSeeked += Math.abs(track - headTrack)
+				+ (lastTrack - track);
+
+		long seek = (long) Math.abs(track - headTrack) * Stats.SeekTime;
+		long arrival = Machine.timer().getTime() + seek;
+
+		// the sector under the head once the seek is done
+		int position = (int) (arrival * sectorsPerTrack / Stats.RotationTime % sectorsPerTrack);
+		int target = sector % sectorsPerTrack;
+		long rotation = (long) ((target - position + sectorsPerTrack) % sectorsPerTrack)
+				* Stats.RotationTime / sectorsPerTrack;
+
+		long transfer = (long) count * Stats.RotationTime / sectorsPerTrack
+				+ (long) (lastTrack - track) * Stats.SeekTime;
+
+		headTrack = lastTrack;
+
+		return seek + rotation + transfer;
+	}
+
+	private void loadImage() {
+		contents = new byte[numSectors * sectorSize];
+
+		OpenFile image = Machine.stubFileSystem().open(imageName, false);
+		if (image != null) {
+			image.read(0, contents, 0, contents.length);
+			image.close();
+		}
+	}
+
+	/**
+	 * Test the disk under each scheduler with several threads issuing
+	 * scattered reads and sequential writes at once.
+	 */
+	public static void selfTest() {
+		String[] schedulers = { "FCFS", "SSTF", "SCAN", "CLOOK" };
+
+		for (String name : schedulers) {
+			final SynchDisk disk = new SynchDisk();
+			disk.scheduler = (DiskScheduler) Lib.constructObject("nachos.filesys."
+					+ name + "DiskScheduler");
+			disk.imageName = "diskTest";
+
+			KThread[] threads = new KThread[6];
+			for (int i = 0; i < threads.length; i++) {
+				final int id = i;
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						byte[] buf = new byte[disk.getSectorSize()];
+						for (int j = 0; j < 20; j++) {
+							int sector = (id * 7919 + j * 104729)
+									% disk.getNumSectors();
+							if (id % 2 == 0) {
+								disk.readSectors(sector, buf, 0, 1);
+							}
+							else {
+								buf[0] = (byte) j;
+								sector = id * 64 + j;
+								disk.writeSectors(sector, buf, 0, 1);
+								disk.readSectors(sector, buf, 0, 1);
+								Lib.assertTrue(buf[0] == (byte) j);
+							}
+						}
+					}
+				}).setName("disk test " + i);
+				threads[i].fork();
+			}
+
+			long start = Machine.timer().getTime();
+			for (KThread thread : threads)
+				thread.join();
+
+			System.out.print(name + ": " + (Machine.timer().getTime() - start)
+					+ " ticks. ");
+			disk.print();
+		}
+	}
+
+	private int sectorSize;
+
+	private int sectorsPerTrack;
+
+	private int numTracks;
+
+	private int numSectors;
+
+	private String imageName;
+
+	private DiskScheduler scheduler;
+
+	/** The disk's contents, loaded from the image on first use. */
+	private byte[] contents = null;
+
+	private int headTrack = 0;
+
+	private int headSector = 0;
+
+	private KThread controller = null;
+
+	private LinkedList<DiskRequest> queue = new LinkedList<DiskRequest>();
+
+	private Lock lock = new Lock();
+
+	private Condition requestPending = new Condition(lock);
+
+	private int numRequests = 0;
+
+	private int numBatches = 0;
+
+	private int numSectorsRead = 0;
+
+	private int numSectorsWritten = 0;
+
+	private long numTracksSeeked = 0;
+
+	private long busyTicks = 0;
+}
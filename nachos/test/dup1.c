@@ -0,0 +1,72 @@
+/*
+ * dup1.c
+ *
+ * Simple program for testing dup and dup2.  Descriptors made by dup
+ * share the file position of the original, and dup2 replaces stdout.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+int
+main (int argc, char *argv[])
+{
+    char *file = "dup.out";
+    char buffer[8];
+    int fd, fd2, r;
+
+    printf ("creating %s...\n", file);
+    fd = creat (file);
+    if (fd < 0) {
+	printf ("...failed (%d)\n", fd);
+	exit (-1);
+    }
+
+    printf ("dup-ing %d...\n", fd);
+    fd2 = dup (fd);
+    if (fd2 < 0 || fd2 == fd) {
+	printf ("...failed (fd2 = %d)\n", fd2);
+	exit (-1);
+    }
+    printf ("...passed (fd2 = %d)\n", fd2);
+
+    printf ("writing through both descriptors...\n");
+    if (write (fd, "abc", 3) != 3 || write (fd2, "def", 3) != 3) {
+	printf ("...failed\n");
+	exit (-1);
+    }
+    close (fd);
+    close (fd2);
+
+    printf ("checking that they shared one position...\n");
+    fd = open (file);
+    r = read (fd, buffer, sizeof (buffer));
+    if (r != 6 || strncmp (buffer, "abcdef", 6) != 0) {
+	printf ("...failed (read %d bytes)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    printf ("dup2-ing %d onto an invalid descriptor...\n", fd);
+    r = dup2 (fd, -1);
+    if (r != -1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    printf ("dup2-ing stdout onto %d...\n", fd);
+    r = dup2 (fdStandardOutput, fd);
+    if (r != fd) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    r = write (fd, "...passed\n", 10);
+    if (r != 10) {
+	exit (-1);
+    }
+
+    close (fd);
+    unlink (file);
+    return 0;
+}
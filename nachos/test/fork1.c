@@ -0,0 +1,50 @@
+/*
+ * fork1.c
+ *
+ * Simple program for testing fork.  The child changes a global and
+ * its own copy of a local, and exits; the parent joins it and checks
+ * that neither change is visible in its own address space.
+ */
+
+#include "syscall.h"
+
+int global = 1;
+
+int
+main (int argc, char *argv[])
+{
+    int local = 2;
+    int pid, r, status = 0;
+
+    printf ("forking...\n");
+    pid = fork ();
+    if (pid == 0) {
+	global = 10;
+	local = 20;
+	exit (global + local);
+    } else if (pid < 0) {
+	printf ("...failed (pid = %d)\n", pid);
+	exit (-1);
+    }
+    printf ("...passed (pid = %d)\n", pid);
+
+    printf ("joining %d...\n", pid);
+    r = join (pid, &status);
+    if (r != 1) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    } else if (status != 30) {
+	printf ("...failed (status from child = %d, expected 30)\n", status);
+	exit (-1);
+    }
+    printf ("...passed (status from child = %d)\n", status);
+
+    printf ("checking the parent's memory...\n");
+    if (global != 1 || local != 2) {
+	printf ("...failed (global = %d, local = %d)\n", global, local);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    return 0;
+}
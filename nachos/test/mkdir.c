@@ -0,0 +1,18 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int main(int argc, char** argv)
+{
+  if (argc!=2) {
+    printf("Usage: mkdir <directory>\n");
+    return 1;
+  }
+
+  if (mkdir(argv[1]) != 0) {
+      printf("Unable to create %s\n", argv[1]);
+      return 1;
+  }
+
+  return 0;
+}
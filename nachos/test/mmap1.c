@@ -0,0 +1,66 @@
+/*
+ * mmap1.c
+ *
+ * Simple program for testing mmap and munmap.  It maps a file, changes
+ * it through memory, unmaps it, and reads the change back with read.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+/* Page-aligned, and far enough above the stack to be unused. */
+#define MAPADDR ((char *) (64 * 1024))
+
+int
+main (int argc, char *argv[])
+{
+    char *file = "mmap.out";
+    char *str = "mapped memory\n";
+    char buffer[32];
+    int fd, r, len = strlen (str);
+
+    printf ("creating %s...\n", file);
+    fd = creat (file);
+    if (fd < 0 || write (fd, str, len) != len) {
+	printf ("...failed (fd = %d)\n", fd);
+	exit (-1);
+    }
+
+    printf ("mapping %s at 0x%x...\n", file, MAPADDR);
+    r = mmap (fd, MAPADDR, len);
+    if (r != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    close (fd);
+
+    printf ("checking the mapped contents...\n");
+    if (strncmp (MAPADDR, str, len) != 0) {
+	printf ("...failed\n");
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    MAPADDR[0] = 'M';
+
+    printf ("unmapping...\n");
+    r = munmap (MAPADDR);
+    if (r != 0) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    printf ("checking that the change reached the file...\n");
+    fd = open (file);
+    r = read (fd, buffer, len);
+    if (r != len || buffer[0] != 'M' || strncmp (buffer + 1, str + 1, len - 1) != 0) {
+	printf ("...failed (read %d bytes)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    close (fd);
+    unlink (file);
+    return 0;
+}
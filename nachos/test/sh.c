@@ -110,6 +110,7 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
 
 void runline(char* line) {
     int pid, background, status;
+    char *c;
    
     char args[BUFFERSIZE], prog[BUFFERSIZE];
     char *argv[MAXARGS];
@@ -149,6 +150,16 @@ void runline(char* line) {
 	    }
 	    return;
 	}
+	else if (strcmp(argv[0], "cd")==0) {
+	    if (argc == 2) {
+		if (chdir(argv[1]) != 0)
+		    printf("cd: %s: No such directory.\n", argv[1]);
+	    }
+	    else {
+		printf("cd: Expression Syntax.\n");
+	    }
+	    return;
+	}
 	else if (strcmp(argv[0], "join")==0) {
 	    if (argc == 2) {
 		pid = atoi(argv[1]);
@@ -159,7 +170,16 @@ void runline(char* line) {
 	    }
 	}
 	else {
-	    strcpy(prog, argv[0]);
+	    /* programs without a path are run from the root directory */
+	    for (c = argv[0]; *c != '\0' && *c != '/'; c++)
+		;
+	    if (*c == '\0') {
+		strcpy(prog, "/");
+		strcat(prog, argv[0]);
+	    }
+	    else {
+		strcpy(prog, argv[0]);
+	    }
 	    strcat(prog, ".coff");
 
 	    pid = exec(prog, argc, argv);
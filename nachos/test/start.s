@@ -55,7 +55,7 @@ name:				; \
 	.end	name
 
 	SYSCALLSTUB(halt, syscallHalt)
-	SYSCALLSTUB(exit, syscallExit)
+	SYSCALLSTUB(_exit, syscallExit)
 	SYSCALLSTUB(exec, syscallExec)
 	SYSCALLSTUB(join, syscallJoin)
 	SYSCALLSTUB(creat, syscallCreate)
@@ -67,3 +67,12 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(mkdir, syscallMkdir)
+	SYSCALLSTUB(chdir, syscallChdir)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(waitpid, syscallWaitpid)
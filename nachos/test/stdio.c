@@ -1,18 +1,63 @@
 #include "stdio.h"
 #include "stdlib.h"
 
+/* Characters written to stdout by fputc() wait here until a newline, a full
+ * buffer, other output to stdout, a read, or exit() flushes them, so that
+ * echoing a line costs one system call rather than one per character.
+ */
+static char outbuf[80];
+static int outlen = 0;
+
 int fgetc(int fd) {
     unsigned char c;
 
+    fflush(stdout);
+
     while (read(fd, &c, 1) != 1);
 
     return c;
 }
 
 void fputc(char c, int fd) {
-    write(fd, &c, 1);
+    if (fd != stdout) {
+	write(fd, &c, 1);
+	return;
+    }
+
+    outbuf[outlen++] = c;
+    if (c == '\n' || outlen == sizeof(outbuf))
+	fflush(stdout);
+}
+
+void fputn(const char *s, int length, int fd) {
+    struct iovec iov[2];
+
+    if (fd != stdout || outlen == 0) {
+	write(fd, (char*) s, length);
+	return;
+    }
+
+    /* send anything fputc() buffered and the new text in one call */
+    iov[0].iov_base = outbuf;
+    iov[0].iov_len = outlen;
+    iov[1].iov_base = (char*) s;
+    iov[1].iov_len = length;
+    writev(fd, iov, 2);
+    outlen = 0;
 }
 
 void fputs(const char *s, int fd) {
-    write(fd, (char*) s, strlen(s));
+    fputn(s, strlen(s), fd);
+}
+
+void fflush(int fd) {
+    if (fd == stdout && outlen > 0) {
+	write(fd, outbuf, outlen);
+	outlen = 0;
+    }
+}
+
+void exit(int status) {
+    fflush(stdout);
+    _exit(status);
 }
@@ -24,6 +24,8 @@ int  tryreadline(char *s, char c, int maxlength);
 
 void fputc(char c, FILE stream);
 void fputs(const char *s, FILE stream);
+void fputn(const char *s, int length, FILE stream);
+void fflush(FILE stream);
 
 #define puts(s)		fputs(s,stdout)
 #define putc(c,stream)	fputc(c,stream)
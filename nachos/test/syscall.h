@@ -25,6 +25,15 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
+#define syscallReadv		15
+#define syscallWritev		16
+#define syscallMkdir		17
+#define syscallChdir		18
+#define syscallDup		19
+#define syscallDup2		20
+#define syscallWaitpid		21
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +62,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), waitpid(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -67,6 +76,13 @@ void halt();
  */
 void exit(int status);
 
+/**
+ * Terminate the current process like exit(), but without first flushing
+ * output that the C library has buffered. exit() is the C library's wrapper
+ * around this syscall.
+ */
+void _exit(int status);
+
 /**
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
@@ -108,7 +124,41 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
-/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
+/* Option to waitpid(): return at once if no child has exited. */
+#define WNOHANG 1
+
+/**
+ * Wait for a child process to exit, like join(), but for any child when
+ * processID is -1, and without waiting when options is WNOHANG. The child
+ * joined is disowned as it is by join().
+ *
+ * status points to an integer where the exit status of the child process will
+ * be stored, as for join().
+ *
+ * Returns the process ID of the child joined, 0 if WNOHANG was given and no
+ * such child has exited yet, or -1 if processID does not refer to a child
+ * process of the current process (or, for -1, if the current process has no
+ * children).
+ */
+int waitpid(int processID, int *status, int options);
+
+/**
+ * Create a new process that is a copy of the current process. The child gets
+ * a copy of the parent's address space and every one of its file descriptors,
+ * including standard input and output, and starts running by returning from
+ * fork(). Each descriptor shares its open file and file position with the
+ * parent's.
+ *
+ * The address space is shared copy-on-write where the kernel supports it, so
+ * fork() does not copy any memory until one of the processes writes to it.
+ *
+ * Returns the child's process ID in the parent and 0 in the child, or -1 if
+ * an error occurred.
+ */
+int fork();
+
+/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, readv, writev, close,
+ * unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
  * disk or to a stream (such as console input, console output, and network
@@ -181,6 +231,31 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/* One buffer of a readv() or writev() call. */
+struct iovec {
+    void *iov_base;	/* first byte of the buffer */
+    int iov_len;	/* number of bytes in the buffer */
+};
+
+/**
+ * Read from a file descriptor into iovcnt buffers, filling each in turn before
+ * the next, as if by one read() into a single buffer as long as all of them
+ * together. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes read, as for read(), or -1 if an error
+ * occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write iovcnt buffers to a file descriptor, in order, as one write() of their
+ * combined contents. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes written, as for write(), or -1 if an error
+ * occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or
  * stream and may be reused. The resources associated with the file
@@ -190,6 +265,25 @@ int write(int fileDescriptor, void *buffer, int count);
  */
 int close(int fileDescriptor);
 
+/**
+ * Return a new file descriptor referring to the same open file as
+ * fileDescriptor. The two descriptors share one file position, and the file
+ * stays open until both are closed. The new descriptor is the lowest one not
+ * in use. A process may have up to 1024 file descriptors open.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Make newFileDescriptor refer to the same open file as fileDescriptor, as
+ * dup() does, closing whatever newFileDescriptor referred to first. Does
+ * nothing if the two are equal.
+ *
+ * Returns newFileDescriptor, or -1 if an error occurred.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
 /**
  * Delete a file from the file system. 
  *
@@ -204,18 +298,46 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Create an empty directory. A path beginning with / is taken from the root
+ * directory, and any other path from the working directory; "." and ".."
+ * refer to a directory itself and to its parent. Directories are only
+ * supported when the kernel uses a file system that has them.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int mkdir(char *path);
+
+/**
+ * Change the working directory, against which relative paths given to
+ * creat(), open(), unlink(), exec(), mkdir() and chdir() are resolved.
+ * Children created by exec() or fork() start in their parent's working
+ * directory.
+ *
+ * Returns 0 on success, or -1 if path is not a directory.
+ */
+int chdir(char *path);
+
+/**
+ * Map the first length bytes of the file referenced by fileDescriptor into
+ * memory at address. address must be page-aligned, must lie above the
+ * program's stack, and must not overlap another mapping.
+ *
+ * Pages of the map are read from the file when first touched, and dirty pages
+ * are written back to the file when they are evicted or unmapped. The map
+ * keeps its own reference to the file, so it remains valid after
+ * fileDescriptor is closed.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int mmap(int fileDescriptor, char *address, int length);
+
+/**
+ * Remove the map created by mmap() at address, flushing its remaining dirty
+ * pages to the file. All maps are removed when the process exits.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if no map starts at address.
  */
-int mmap(int fileDescriptor, char *address);
+int munmap(char *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
@@ -0,0 +1,59 @@
+/*
+ * waitpid1.c
+ *
+ * Simple program for testing waitpid.  It execs two children and
+ * reaps them with waitpid (-1, ...), first without waiting, and checks
+ * that waitpid fails once no children are left.
+ */
+
+#include "syscall.h"
+
+int
+main (int argc, char *argv[])
+{
+    char *prog = "exit1.coff";
+    int pid1, pid2, r, n, status = 0;
+
+    printf ("execing %s twice...\n", prog);
+    pid1 = exec (prog, 0, 0);
+    pid2 = exec (prog, 0, 0);
+    if (pid1 > 0 && pid2 > 0) {
+	printf ("...passed (pids = %d, %d)\n", pid1, pid2);
+    } else {
+	printf ("...failed (pids = %d, %d)\n", pid1, pid2);
+	exit (-1);
+    }
+
+    printf ("polling with WNOHANG...\n");
+    r = waitpid (-1, &status, WNOHANG);
+    if (r != 0 && r != pid1 && r != pid2) {
+	printf ("...failed (r = %d)\n", r);
+	exit (-1);
+    }
+    printf ("...passed (r = %d)\n", r);
+
+    n = (r == 0) ? 0 : 1;
+    while (n < 2) {
+	printf ("waiting for any child...\n");
+	r = waitpid (-1, &status, 0);
+	if (r != pid1 && r != pid2) {
+	    printf ("...failed (r = %d)\n", r);
+	    exit (-1);
+	} else if (status != 123) {
+	    printf ("...failed (status from child = %d)\n", status);
+	    exit (-1);
+	}
+	printf ("...passed (pid = %d, status = %d)\n", r, status);
+	n++;
+    }
+
+    printf ("waiting with no children left...\n");
+    r = waitpid (-1, &status, 0);
+    if (r != -1) {
+	printf ("...failed (r = %d, should be -1)\n", r);
+	exit (-1);
+    }
+    printf ("...passed\n");
+
+    return 0;
+}
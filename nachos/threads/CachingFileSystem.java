@@ -0,0 +1,595 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import nachos.machine.*;
+
+/**
+ * A file system that keeps recently used blocks of another file system in
+ * kernel memory. Reads are served from the cache when possible, and writes
+ * only dirty the cached block; dirty blocks are written back when they are
+ * evicted, when the last handle on their file is closed, or when the kernel
+ * terminates. Sequential reads fetch the following blocks in the same request
+ * to the underlying file system.
+ *
+ * <p>
+ * Select it by setting <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.threads.CachingFileSystem</tt>. The cache is sized by
+ * <tt>CachingFileSystem.numBlocks</tt> and
+ * <tt>CachingFileSystem.blockSize</tt>, read-ahead by
+ * <tt>CachingFileSystem.readAhead</tt>, and the replacement policy by
+ * <tt>CachingFileSystem.replacement</tt> (<tt>lru</tt> or <tt>clock</tt>).
+ */
+public class CachingFileSystem implements KernelFileSystem {
+	/**
+	 * Allocate a new caching file system on top of the stub file system.
+	 */
+	public CachingFileSystem() {
+		this(Machine.stubFileSystem());
+	}
+
+	/**
+	 * Allocate a new caching file system on top of <tt>fileSystem</tt>.
+	 *
+	 * @param fileSystem the file system whose blocks are cached.
+	 */
+	public CachingFileSystem(FileSystem fileSystem) {
+		Lib.assertTrue(fileSystem != null);
+		this.fileSystem = fileSystem;
+
+		blockSize = Config.getInteger("CachingFileSystem.blockSize", 1024);
+		numBlocks = Config.getInteger("CachingFileSystem.numBlocks", 64);
+		readAhead = Config.getInteger("CachingFileSystem.readAhead", 4);
+		Lib.assertTrue(blockSize > 0 && numBlocks > 0 && readAhead >= 0);
+
+		String replacement = Config.getString("CachingFileSystem.replacement",
+				"lru");
+		Lib.assertTrue(replacement.equals("lru")
+				|| replacement.equals("clock"));
+		useClock = replacement.equals("clock");
+
+		blocks = new Block[numBlocks];
+		for (int i = 0; i < numBlocks; i++)
+			blocks[i] = new Block();
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		openLock.acquire();
+
+		CachedFile file = files.get(name);
+		if (file == null) {
+			OpenFile backing = fileSystem.open(name, truncate);
+			if (backing == null) {
+				openLock.release();
+				return null;
+			}
+
+			file = new CachedFile(name);
+			file.backing = backing;
+			file.length = file.diskLength = backing.length();
+			files.put(name, file);
+		}
+		else if (file.backing == null) {
+			OpenFile backing = fileSystem.open(name, truncate);
+			if (backing == null) {
+				openLock.release();
+				return null;
+			}
+
+			file.backing = backing;
+			if (truncate)
+				discard(file);
+			file.length = file.diskLength = backing.length();
+		}
+		else if (truncate) {
+			OpenFile truncated = fileSystem.open(name, true);
+			if (truncated == null) {
+				openLock.release();
+				return null;
+			}
+			truncated.close();
+
+			discard(file);
+			file.length = file.diskLength = 0;
+		}
+
+		file.handles++;
+		openCount++;
+
+		openLock.release();
+
+		return new CachingOpenFile(file);
+	}
+
+	public boolean remove(String name) {
+		openLock.acquire();
+
+		CachedFile file = files.get(name);
+		boolean successful = fileSystem.remove(name);
+
+		if (successful && file != null) {
+			// open handles keep the removed file's blocks until they close
+			files.remove(name);
+			if (file.handles == 0)
+				discard(file);
+		}
+
+		openLock.release();
+
+		return successful;
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * Write every dirty block back to the underlying file system, and sync
+	 * that in turn if it is a kernel file system.
+	 */
+	public void sync() {
+		openLock.acquire();
+
+		for (CachedFile file : new ArrayList<CachedFile>(files.values())) {
+			if (file.backing != null)
+				flush(file);
+		}
+
+		openLock.release();
+
+		if (fileSystem instanceof KernelFileSystem)
+			((KernelFileSystem) fileSystem).sync();
+	}
+
+	/**
+	 * Print the underlying file system's counts; the cache keeps none of its
+	 * own.
+	 */
+	public void print() {
+		if (fileSystem instanceof KernelFileSystem)
+			((KernelFileSystem) fileSystem).print();
+	}
+
+	private void close(CachedFile file) {
+		openLock.acquire();
+
+		Lib.assertTrue(file.handles > 0);
+		file.handles--;
+		openCount--;
+
+		if (file.handles == 0) {
+			flush(file);
+			file.backing.close();
+			file.backing = null;
+
+			if (files.get(file.name) != file)
+				discard(file);
+		}
+
+		openLock.release();
+	}
+
+	private int read(CachedFile file, int pos, byte[] buf, int offset,
+			int length, boolean sequential) {
+		if (pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		cacheLock.acquire();
+
+		int end = Math.min(pos + length, file.length);
+		int lastBlock = (Math.max(file.length, 1) - 1) / blockSize;
+		int amount = 0;
+
+		while (pos < end) {
+			int blockNumber = pos / blockSize;
+			int blockOffset = pos % blockSize;
+			int n = Math.min(blockSize - blockOffset, end - pos);
+
+			int count = (end - 1) / blockSize - blockNumber + 1;
+			if (sequential)
+				count = Math.min(count + readAhead,
+						lastBlock - blockNumber + 1);
+
+			Block block = getBlock(file, blockNumber, count, true);
+			System.arraycopy(block.data, blockOffset, buf, offset + amount, n);
+
+			pos += n;
+			amount += n;
+		}
+
+		cacheLock.release();
+
+		return amount;
+	}
+
+	private int write(CachedFile file, int pos, byte[] buf, int offset,
+			int length) {
+		if (pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		cacheLock.acquire();
+
+		int amount = 0;
+
+		while (amount < length) {
+			int blockNumber = pos / blockSize;
+			int blockOffset = pos % blockSize;
+			int n = Math.min(blockSize - blockOffset, length - amount);
+
+			// a block that is overwritten entirely need not be read first
+			boolean fill = blockOffset != 0 || n != blockSize;
+
+			Block block = getBlock(file, blockNumber, 1, fill);
+			System.arraycopy(buf, offset + amount, block.data, blockOffset, n);
+			block.dirty = true;
+
+			pos += n;
+			amount += n;
+			file.length = Math.max(file.length, pos);
+		}
+
+		cacheLock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Return the cached block <tt>blockNumber</tt> of <tt>file</tt>, loading
+	 * it on a miss. A miss loads up to <tt>count</tt> consecutive missing
+	 * blocks with a single read. Must be called with <tt>cacheLock</tt> held,
+	 * which may be released and reacquired while waiting.
+	 */
+	private Block getBlock(CachedFile file, int blockNumber, int count,
+			boolean fill) {
+		while (true) {
+			Block block = file.blocks.get(blockNumber);
+
+			if (block == null) {
+				loadBlocks(file, blockNumber, count, fill);
+			}
+			else if (block.busy) {
+				cacheCV.sleep();
+			}
+			else {
+				block.referenced = true;
+				block.lastUsed = ++useCounter;
+				return block;
+			}
+		}
+	}
+
+	private void loadBlocks(CachedFile file, int first, int count,
+			boolean fill) {
+		ArrayList<Block> victims = new ArrayList<Block>();
+		for (int i = 0; i < count; i++) {
+			if (file.blocks.containsKey(first + i))
+				break;
+
+			Block victim = chooseVictim();
+			if (victim == null)
+				break;
+
+			victim.busy = true;
+			victims.add(victim);
+		}
+
+		if (victims.isEmpty()) {
+			cacheCV.sleep();
+			return;
+		}
+
+		// write back the dirty victims, then detach them from their old files
+		for (Block victim : victims) {
+			if (victim.dirty)
+				writeBack(victim.file, victim.blockNumber, 1);
+		}
+
+		for (Block victim : victims) {
+			if (victim.file != null)
+				victim.file.blocks.remove(victim.blockNumber);
+			victim.file = null;
+			victim.dirty = false;
+		}
+
+		// other threads may have loaded some of the range in the meantime
+		int n = 0;
+		while (n < victims.size() && !file.blocks.containsKey(first + n)) {
+			Block victim = victims.get(n);
+			victim.file = file;
+			victim.blockNumber = first + n;
+			file.blocks.put(first + n, victim);
+			n++;
+		}
+
+		for (int i = n; i < victims.size(); i++)
+			victims.get(i).busy = false;
+
+		if (n > 0) {
+			int start = first * blockSize;
+			int amount = 0;
+
+			if (fill && start < file.diskLength) {
+				byte[] data = new byte[n * blockSize];
+				OpenFile backing = file.backing;
+
+				cacheLock.release();
+				amount = Math.max(0, backing.read(start, data, 0, data.length));
+				cacheLock.acquire();
+
+				for (int i = 0; i < n; i++)
+					System.arraycopy(data, i * blockSize, victims.get(i).data,
+							0, blockSize);
+			}
+			else {
+				for (int i = 0; i < n; i++)
+					Arrays.fill(victims.get(i).data, (byte) 0);
+			}
+
+			for (int i = 0; i < n; i++) {
+				Block block = victims.get(i);
+				block.busy = false;
+				block.referenced = true;
+				block.lastUsed = ++useCounter;
+			}
+		}
+
+		cacheCV.wakeAll();
+	}
+
+	/**
+	 * Pick an idle block to replace, preferring blocks that hold nothing.
+	 * Returns <tt>null</tt> if every block is busy.
+	 */
+	private Block chooseVictim() {
+		for (Block block : blocks) {
+			if (block.file == null && !block.busy)
+				return block;
+		}
+
+		if (useClock) {
+			for (int i = 0; i < 2 * numBlocks; i++) {
+				Block block = blocks[clockHand];
+				clockHand = (clockHand + 1) % numBlocks;
+
+				if (block.busy)
+					continue;
+				if (!block.referenced)
+					return block;
+				block.referenced = false;
+			}
+			return null;
+		}
+
+		Block victim = null;
+		for (Block block : blocks) {
+			if (!block.busy
+					&& (victim == null || block.lastUsed < victim.lastUsed))
+				victim = block;
+		}
+		return victim;
+	}
+
+	/**
+	 * Write <tt>count</tt> consecutive blocks of <tt>file</tt>, starting at
+	 * <tt>first</tt>, back with a single write. The blocks must be marked
+	 * busy by the caller. Must be called with <tt>cacheLock</tt> held.
+	 */
+	private void writeBack(CachedFile file, int first, int count) {
+		int start = first * blockSize;
+		int length = Math.min(count * blockSize, file.length - start);
+		if (length <= 0)
+			return;
+
+		byte[] data = new byte[length];
+		for (int i = 0; i * blockSize < length; i++) {
+			Block block = file.blocks.get(first + i);
+			System.arraycopy(block.data, 0, data, i * blockSize,
+					Math.min(blockSize, length - i * blockSize));
+		}
+
+		OpenFile backing = file.backing;
+
+		cacheLock.release();
+		backing.write(start, data, 0, length);
+		cacheLock.acquire();
+
+		file.diskLength = Math.max(file.diskLength, start + length);
+	}
+
+	/**
+	 * Write all of <tt>file</tt>'s dirty blocks back, coalescing runs of
+	 * consecutive blocks. Returns once no block of the file is dirty or busy.
+	 */
+	private void flush(CachedFile file) {
+		cacheLock.acquire();
+
+		while (true) {
+			ArrayList<Integer> dirty = new ArrayList<Integer>();
+			boolean busy = false;
+
+			for (Block block : file.blocks.values()) {
+				if (block.busy)
+					busy = true;
+				else if (block.dirty)
+					dirty.add(block.blockNumber);
+			}
+
+			if (dirty.isEmpty()) {
+				if (!busy)
+					break;
+				cacheCV.sleep();
+				continue;
+			}
+
+			Collections.sort(dirty);
+
+			int first = dirty.get(0);
+			int count = 1;
+			while (count < dirty.size() && dirty.get(count) == first + count)
+				count++;
+
+			for (int i = 0; i < count; i++)
+				file.blocks.get(first + i).busy = true;
+
+			writeBack(file, first, count);
+
+			for (int i = 0; i < count; i++) {
+				Block block = file.blocks.get(first + i);
+				block.dirty = false;
+				block.busy = false;
+			}
+			cacheCV.wakeAll();
+		}
+
+		cacheLock.release();
+	}
+
+	/**
+	 * Drop all of <tt>file</tt>'s blocks from the cache without writing them
+	 * back.
+	 */
+	private void discard(CachedFile file) {
+		cacheLock.acquire();
+
+		while (!file.blocks.isEmpty()) {
+			boolean busy = false;
+
+			for (Block block : new ArrayList<Block>(file.blocks.values())) {
+				if (block.busy) {
+					busy = true;
+					continue;
+				}
+
+				file.blocks.remove(block.blockNumber);
+				block.file = null;
+				block.dirty = false;
+			}
+
+			if (busy)
+				cacheCV.sleep();
+		}
+
+		cacheLock.release();
+	}
+
+	/**
+	 * The cache state shared by every handle on one file.
+	 */
+	private static class CachedFile {
+		CachedFile(String name) {
+			this.name = name;
+		}
+
+		String name;
+
+		/** The underlying file, or <tt>null</tt> while no handle is open. */
+		OpenFile backing = null;
+
+		int handles = 0;
+
+		/** The length of the file, including blocks not yet written back. */
+		int length;
+
+		/** The length of the file in the underlying file system. */
+		int diskLength;
+
+		HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+	}
+
+	private class Block {
+		byte[] data = new byte[blockSize];
+
+		/** The file this block caches, or <tt>null</tt> if it is free. */
+		CachedFile file = null;
+
+		int blockNumber;
+
+		boolean dirty = false;
+
+		/** Set while the block is being read in or written back. */
+		boolean busy = false;
+
+		boolean referenced = false;
+
+		long lastUsed = 0;
+	}
+
+	private class CachingOpenFile extends OpenFileWithPosition {
+		CachingOpenFile(CachedFile file) {
+			super(CachingFileSystem.this, file.name);
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			boolean sequential = pos == nextPosition;
+
+			int amount = CachingFileSystem.this.read(file, pos, buf, offset,
+					length, sequential);
+			if (amount > 0)
+				nextPosition = pos + amount;
+
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			return CachingFileSystem.this.write(file, pos, buf, offset, length);
+		}
+
+		public int length() {
+			return file.length;
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				CachingFileSystem.this.close(file);
+			}
+		}
+
+		private CachedFile file;
+
+		private boolean open = true;
+
+		/** Where the next read starts if this handle is read sequentially. */
+		private int nextPosition = 0;
+	}
+
+	private FileSystem fileSystem;
+
+	private int blockSize;
+
+	private int numBlocks;
+
+	private int readAhead;
+
+	private boolean useClock;
+
+	private Block[] blocks;
+
+	private int clockHand = 0;
+
+	private long useCounter = 0;
+
+	private int openCount = 0;
+
+	private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	/** Serializes open, close, remove and sync. */
+	private Lock openLock = new Lock();
+
+	/** Protects the blocks and the per-file block maps. */
+	private Lock cacheLock = new Lock();
+
+	private Condition cacheCV = new Condition(cacheLock);
+}
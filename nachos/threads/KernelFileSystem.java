@@ -0,0 +1,21 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A file system implemented by the kernel itself, rather than provided by the
+ * machine, which may hold data in memory that must be written out before the
+ * machine halts.
+ */
+public interface KernelFileSystem extends FileSystem {
+	/**
+	 * Write out everything held in memory, so that the underlying storage is
+	 * up to date.
+	 */
+	public void sync();
+
+	/**
+	 * Print the file system's activity counts, if it keeps any.
+	 */
+	public void print();
+}
@@ -0,0 +1,158 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A file whose contents are held in kernel memory, the way a host file mapped
+ * into memory would be. Reads and writes are plain copies between the mapping
+ * and the caller's array, which for page transfers is the processor's main
+ * memory, so they cost a kernel tick rather than a file system request.
+ *
+ * <p>
+ * A file mapped from another file is read whole with a single request when it
+ * is mapped, and the range of it that was written since is written back with
+ * a single request by <tt>sync()</tt> and on <tt>close()</tt>. An anonymous
+ * mapping has no file behind it and its contents are lost when it is closed,
+ * which suits scratch files such as the swap file.
+ */
+public class MappedFile extends OpenFileWithPosition {
+	/**
+	 * Allocate a new anonymous mapping, initially empty.
+	 *
+	 * @param name the name of the mapping.
+	 */
+	public MappedFile(String name) {
+		this(null, name, null, new byte[initialSize], 0);
+	}
+
+	private MappedFile(FileSystem fileSystem, String name, OpenFile backing,
+			byte[] contents, int length) {
+		super(fileSystem, name);
+
+		this.backing = backing;
+		this.contents = contents;
+		this.length = length;
+	}
+
+	/**
+	 * Map the whole of an open file. The mapping takes over <i>file</i>, which
+	 * is closed when the mapping is.
+	 *
+	 * @param file the file to map.
+	 * @return the mapping, or <tt>null</tt> if the file could not be read, in
+	 * which case <i>file</i> is closed.
+	 */
+	public static MappedFile map(OpenFile file) {
+		int length = file.length();
+		byte[] contents = new byte[Math.max(length, initialSize)];
+
+		if (length < 0 || file.read(0, contents, 0, length) != length) {
+			file.close();
+			return null;
+		}
+
+		return new MappedFile(file.getFileSystem(), file.getName(), file,
+				contents, length);
+	}
+
+	/**
+	 * Copy the whole of an open file into a new anonymous mapping, and close
+	 * the file. Later changes to either do not affect the other.
+	 *
+	 * @param file the file to copy.
+	 * @return the mapping, or <tt>null</tt> if the file could not be read.
+	 */
+	public static MappedFile load(OpenFile file) {
+		MappedFile mapped = map(file);
+		if (mapped == null)
+			return null;
+
+		mapped.backing.close();
+		mapped.backing = null;
+
+		return mapped;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+		ThreadedKernel.chargeTick();
+
+		if (contents == null || pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		int amount = Math.min(length, this.length - pos);
+		if (amount <= 0)
+			return 0;
+
+		System.arraycopy(contents, pos, buf, offset, amount);
+
+		return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+		ThreadedKernel.chargeTick();
+
+		if (contents == null || pos < 0 || length < 0 || offset < 0
+				|| offset + length > buf.length)
+			return -1;
+
+		int end = pos + length;
+		if (end > contents.length) {
+			byte[] grown = new byte[Math.max(end, 2 * contents.length)];
+			System.arraycopy(contents, 0, grown, 0, this.length);
+			contents = grown;
+		}
+
+		System.arraycopy(buf, offset, contents, pos, length);
+		this.length = Math.max(this.length, end);
+
+		if (length > 0) {
+			dirtyStart = Math.min(dirtyStart, pos);
+			dirtyEnd = Math.max(dirtyEnd, end);
+		}
+
+		return length;
+	}
+
+	public int length() {
+		return contents == null ? -1 : length;
+	}
+
+	/**
+	 * Write the range of the mapping changed since the last sync back to the
+	 * mapped file.
+	 */
+	public void sync() {
+		if (backing == null || dirtyEnd <= dirtyStart)
+			return;
+
+		int start = dirtyStart, end = dirtyEnd;
+		dirtyStart = Integer.MAX_VALUE;
+		dirtyEnd = 0;
+
+		backing.write(start, contents, start, end - start);
+	}
+
+	public void close() {
+		if (contents == null)
+			return;
+
+		sync();
+		if (backing != null)
+			backing.close();
+
+		contents = null;
+	}
+
+	private OpenFile backing;
+
+	private byte[] contents;
+
+	private int length;
+
+	private int dirtyStart = Integer.MAX_VALUE;
+
+	private int dirtyEnd = 0;
+
+	private static final int initialSize = 1024;
+}
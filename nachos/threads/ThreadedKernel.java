@@ -68,12 +68,29 @@ public class ThreadedKernel extends Kernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel. Writes back any data still cached by the file
+	 * system. Never returns.
 	 */
 	public void terminate() {
+		if (fileSystem instanceof KernelFileSystem) {
+			((KernelFileSystem) fileSystem).sync();
+			((KernelFileSystem) fileSystem).print();
+		}
+
 		Machine.halt();
 	}
 
+	/**
+	 * Advance the simulated time by one kernel tick, for work the kernel does
+	 * in its own memory in place of a device request, such as copying a page
+	 * or compressing it. That work is far cheaper than the request it stands
+	 * in for, but should not be free.
+	 */
+	public static void chargeTick() {
+		boolean intStatus = Machine.interrupt().disable();
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/** Globally accessible reference to the scheduler. */
 	public static Scheduler scheduler = null;
 
@@ -0,0 +1,227 @@
+package nachos.userprog;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A kernel-wide cache of loaded executables. The first process to run a
+ * program copies the whole file into kernel memory with one read and parses
+ * its headers; later processes running the same program get a
+ * <tt>Coff</tt> sharing those sections, so they neither read the file nor
+ * parse it again, and their pages are loaded by copying from memory.
+ *
+ * <p>
+ * Images are keyed by the file name and the modification stamp kept by
+ * <tt>UserKernel.openFiles</tt>, so a program that has been rewritten is
+ * loaded afresh. The cache holds at most
+ * <tt>UserKernel.executableCacheSize</tt> bytes of images; the least recently
+ * used images are dropped once it is full, and an image in use by a process
+ * is freed when the last process using it closes it.
+ */
+public class ExecutableCache {
+	/**
+	 * Allocate a new executable cache.
+	 *
+	 * @param maxBytes the most bytes of images to keep.
+	 */
+	public ExecutableCache(int maxBytes) {
+		Lib.assertTrue(maxBytes > 0);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Return the key identifying the current contents of an executable.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return the key for the file's current contents.
+	 */
+	public static String getKey(String name) {
+		return name + ":" + UserKernel.openFiles.getStamp(name);
+	}
+
+	/**
+	 * Load an executable, using the cached image of it if there is one.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return the loaded executable, which must be closed when the process is
+	 * done with it, or <tt>null</tt> if it could not be loaded.
+	 */
+	public Coff open(String name) {
+		lock.acquire();
+
+		String key = getKey(name);
+		Image image = images.get(key);
+
+		if (image != null) {
+			numHits++;
+		}
+		else {
+			image = loadImage(name, key);
+			if (image == null) {
+				lock.release();
+				return null;
+			}
+			numMisses++;
+		}
+
+		image.references++;
+
+		lock.release();
+
+		return new ImageCoff(image);
+	}
+
+	/**
+	 * Print the cache's hit, miss and eviction counts, if debugging the cache.
+	 */
+	public void print() {
+		Lib.debug(dbgCache, "Executable cache: hits " + numHits + ", misses "
+				+ numMisses + ", evictions " + numEvictions + ", bytes cached "
+				+ cachedBytes);
+	}
+
+	private Image loadImage(String name, String key) {
+		OpenFile file = UserKernel.openFiles.open(name, false);
+		if (file == null)
+			return null;
+
+		MappedFile mapped = MappedFile.load(file);
+		if (mapped == null)
+			return null;
+
+		Coff coff;
+		try {
+			coff = new Coff(mapped);
+		}
+		catch (EOFException e) {
+			mapped.close();
+			return null;
+		}
+
+		Image image = new Image(name, key, coff, mapped.length());
+
+		// an older image of the same program can never be used again
+		Image old = latest.put(name, image);
+		if (old != null && old.cached)
+			evict(old);
+
+		if (image.size <= maxBytes) {
+			image.cached = true;
+			images.put(key, image);
+			cachedBytes += image.size;
+
+			while (cachedBytes > maxBytes)
+				evict(images.values().iterator().next());
+		}
+
+		return image;
+	}
+
+	private void evict(Image image) {
+		images.remove(image.key);
+		image.cached = false;
+		cachedBytes -= image.size;
+		numEvictions++;
+
+		if (image.references == 0)
+			free(image);
+	}
+
+	private void free(Image image) {
+		image.coff.close();
+		if (latest.get(image.name) == image)
+			latest.remove(image.name);
+	}
+
+	private void release(Image image) {
+		lock.acquire();
+
+		Lib.assertTrue(image.references > 0);
+		if (--image.references == 0 && !image.cached)
+			free(image);
+
+		lock.release();
+	}
+
+	/**
+	 * A parsed executable and its contents.
+	 */
+	private class Image {
+		Image(String name, String key, Coff coff, int size) {
+			this.name = name;
+			this.key = key;
+			this.coff = coff;
+			this.size = size;
+		}
+
+		String name;
+
+		String key;
+
+		/** The executable, parsed from a copy of the file in memory. */
+		Coff coff;
+
+		int size;
+
+		int references = 0;
+
+		/** Set while the image is in the cache. */
+		boolean cached = false;
+	}
+
+	/**
+	 * One process's use of a cached image. Closing it releases the image
+	 * rather than closing the file.
+	 */
+	private class ImageCoff extends Coff {
+		ImageCoff(Image image) {
+			this.image = image;
+
+			entryPoint = image.coff.getEntryPoint();
+			sections = new CoffSection[image.coff.getNumSections()];
+			for (int s = 0; s < sections.length; s++)
+				sections[s] = image.coff.getSection(s);
+		}
+
+		public int getEntryPoint() {
+			Lib.assertTrue(image != null);
+
+			return entryPoint;
+		}
+
+		public void close() {
+			if (image != null) {
+				release(image);
+				image = null;
+				sections = null;
+			}
+		}
+
+		private Image image;
+	}
+
+	private int maxBytes;
+
+	private int cachedBytes = 0;
+
+	/** The cached images, from least to most recently used. */
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(
+			16, 0.75f, true);
+
+	/** The newest image of each program, cached or not. */
+	private HashMap<String, Image> latest = new HashMap<String, Image>();
+
+	private int numHits = 0;
+
+	private int numMisses = 0;
+
+	private int numEvictions = 0;
+
+	private Lock lock = new Lock();
+
+	private static final char dbgCache = 'x';
+}
@@ -0,0 +1,96 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * An open file as seen through a file descriptor. A handle keeps the position
+ * that <tt>read()</tt> and <tt>write()</tt> advance, and is shared by every
+ * descriptor copied from the one it was opened under by <tt>dup()</tt>,
+ * <tt>dup2()</tt> or <tt>fork()</tt>. The file is closed when the last of
+ * those descriptors is.
+ */
+public class FileHandle extends OpenFile {
+	/**
+	 * Allocate a handle on a file, referenced by one descriptor.
+	 *
+	 * @param file the file.
+	 * @param seekable <tt>true</tt> if <i>file</i> is read and written at
+	 * positions, <tt>false</tt> if it is a stream such as the console.
+	 */
+	public FileHandle(OpenFile file, boolean seekable) {
+		super(file.getFileSystem(), file.getName());
+
+		this.file = file;
+		this.seekable = seekable;
+	}
+
+	/**
+	 * Add a descriptor referring to this handle.
+	 */
+	public void reference() {
+		Lib.assertTrue(references > 0);
+		references++;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+		return file.read(pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+		return file.write(pos, buf, offset, length);
+	}
+
+	public int length() {
+		return file.length();
+	}
+
+	/**
+	 * Drop the reference of one descriptor, closing the file if it was the
+	 * last.
+	 */
+	public void close() {
+		Lib.assertTrue(references > 0);
+		if (--references == 0)
+			file.close();
+	}
+
+	public void seek(int pos) {
+		position = pos;
+	}
+
+	public int tell() {
+		return position;
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+		if (!seekable)
+			return file.read(buf, offset, length);
+
+		int amount = file.read(position, buf, offset, length);
+		if (amount == -1)
+			return -1;
+
+		position += amount;
+		return amount;
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+		if (!seekable)
+			return file.write(buf, offset, length);
+
+		int amount = file.write(position, buf, offset, length);
+		if (amount == -1)
+			return -1;
+
+		position += amount;
+		return amount;
+	}
+
+	private OpenFile file;
+
+	private boolean seekable;
+
+	private int position = 0;
+
+	private int references = 1;
+}
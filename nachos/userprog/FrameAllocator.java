@@ -0,0 +1,173 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The allocator of physical memory frames. Free frames are kept in a bitmap,
+ * one bit per frame, so a request for many frames is served under a single
+ * lock acquisition by scanning the map a word at a time, and either succeeds
+ * whole or takes nothing.
+ *
+ * <p>
+ * A request for several frames is given a run of consecutive frames when
+ * there is one, so that the pages loaded into it can be transferred to and
+ * from main memory in a single piece.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator with every frame free.
+	 *
+	 * @param numFrames the number of frames of physical memory.
+	 */
+	public FrameAllocator(int numFrames) {
+		this.numFrames = numFrames;
+		used = new long[(numFrames + 63) / 64];
+		numFree = numFrames;
+
+		// the bits past the last frame are never free
+		if (numFrames % 64 != 0)
+			used[used.length - 1] = -1L << (numFrames % 64);
+	}
+
+	/**
+	 * Allocate a number of frames at once, in one run of consecutive frames
+	 * if there is one.
+	 *
+	 * @param count the number of frames to allocate.
+	 * @return the frames allocated, or <tt>null</tt> if fewer than
+	 * <i>count</i> frames are free, in which case none are allocated.
+	 */
+	public int[] allocate(int count) {
+		Lib.assertTrue(count >= 0);
+
+		lock.acquire();
+
+		if (count > numFree) {
+			lock.release();
+			return null;
+		}
+
+		int[] frames = new int[count];
+
+		int first = findRun(count);
+		if (first != -1) {
+			for (int i = 0; i < count; i++) {
+				frames[i] = first + i;
+				setUsed(first + i);
+			}
+		}
+		else {
+			int n = 0;
+			for (int w = 0; n < count; w++) {
+				while (n < count && used[w] != -1L) {
+					int frame = w * 64 + Long.numberOfTrailingZeros(~used[w]);
+					frames[n++] = frame;
+					setUsed(frame);
+				}
+			}
+		}
+
+		lock.release();
+
+		return frames;
+	}
+
+	/**
+	 * Allocate a single frame.
+	 *
+	 * @return the frame allocated, or -1 if no frame is free.
+	 */
+	public int allocate() {
+		lock.acquire();
+
+		int frame = -1;
+		for (int w = 0; w < used.length; w++) {
+			if (used[w] != -1L) {
+				frame = w * 64 + Long.numberOfTrailingZeros(~used[w]);
+				setUsed(frame);
+				break;
+			}
+		}
+
+		lock.release();
+
+		return frame;
+	}
+
+	/**
+	 * Return a frame to the free pool.
+	 *
+	 * @param frame the frame to free.
+	 */
+	public void free(int frame) {
+		lock.acquire();
+
+		Lib.assertTrue(frame >= 0 && frame < numFrames
+				&& (used[frame / 64] & (1L << frame)) != 0);
+		used[frame / 64] &= ~(1L << frame);
+		numFree++;
+
+		lock.release();
+	}
+
+	/**
+	 * Return the number of free frames.
+	 *
+	 * @return the number of frames not allocated.
+	 */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/**
+	 * Find the lowest run of <i>count</i> free frames. Whole words that are
+	 * entirely free or entirely used are passed over at once. Called with
+	 * the lock held.
+	 */
+	private int findRun(int count) {
+		int start = 0, length = 0;
+
+		for (int w = 0; w < used.length; w++) {
+			if (used[w] == 0) {
+				if (length == 0)
+					start = w * 64;
+				length += 64;
+			}
+			else if (used[w] == -1L) {
+				length = 0;
+			}
+			else {
+				for (int bit = 0; bit < 64; bit++) {
+					if ((used[w] & (1L << bit)) != 0) {
+						length = 0;
+						continue;
+					}
+					if (length == 0)
+						start = w * 64 + bit;
+					if (++length >= count)
+						return start;
+				}
+			}
+
+			if (length >= count)
+				return start;
+		}
+
+		return -1;
+	}
+
+	private void setUsed(int frame) {
+		used[frame / 64] |= 1L << frame;
+		numFree--;
+	}
+
+	private int numFrames;
+
+	/** One bit per frame, set while the frame is allocated. */
+	private long[] used;
+
+	private int numFree;
+
+	private Lock lock = new Lock();
+}
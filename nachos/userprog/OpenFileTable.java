@@ -0,0 +1,196 @@
+package nachos.userprog;
+
+import java.util.HashMap;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The kernel-wide table of open files. Every process that opens a file gets
+ * its own reference to a single file system handle for it, so a file open in
+ * many processes at once counts as one open file in the file system, and
+ * later opens of it need not go to the file system at all. The handle is
+ * closed when the last reference to it is.
+ *
+ * <p>
+ * The references returned by <tt>open()</tt> only support reads and writes at
+ * a given position; <tt>FileHandle</tt> adds a position of its own.
+ */
+public class OpenFileTable {
+	/**
+	 * Allocate a new open-file table.
+	 */
+	public OpenFileTable() {
+	}
+
+	/**
+	 * Open a file, sharing the file system's handle for it if it is already
+	 * open. Truncating a file always opens a new handle, which later opens of
+	 * the file then share; references to the old one stay valid.
+	 *
+	 * @param name the name of the file to open.
+	 * @param truncate if <tt>true</tt>, create the file if it does not exist
+	 * and truncate it to length zero.
+	 * @return a new reference to the file, or <tt>null</tt> if the file could
+	 * not be opened.
+	 */
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+
+		SharedFile shared = truncate ? null : files.get(name);
+		if (shared == null) {
+			OpenFile file = ThreadedKernel.fileSystem.open(name, truncate);
+			if (file == null) {
+				lock.release();
+				return null;
+			}
+
+			if (truncate)
+				touch(name);
+
+			shared = new SharedFile(name, file);
+			files.put(name, shared);
+		}
+		else {
+			numShared++;
+		}
+
+		shared.references++;
+
+		lock.release();
+
+		return shared.newReference();
+	}
+
+	/**
+	 * Remove a file from the file system. Processes that have it open keep
+	 * using the old handle, and the next open of the name finds a new file.
+	 *
+	 * @param name the name of the file to remove.
+	 * @return <tt>true</tt> if the file was removed.
+	 */
+	public boolean remove(String name) {
+		lock.acquire();
+
+		SharedFile shared = files.remove(name);
+		boolean successful = ThreadedKernel.fileSystem.remove(name);
+		if (successful)
+			touch(name);
+		else if (shared != null)
+			files.put(name, shared);
+
+		lock.release();
+
+		return successful;
+	}
+
+	/**
+	 * Return the number of files the table holds open.
+	 *
+	 * @return the number of distinct open files.
+	 */
+	public int getOpenCount() {
+		return files.size();
+	}
+
+	/**
+	 * Return the number of opens that reused a handle already in the table.
+	 *
+	 * @return the number of shared opens.
+	 */
+	public int getSharedCount() {
+		return numShared;
+	}
+
+	/**
+	 * Return a stamp for the contents of a file, which changes whenever the
+	 * file is written, truncated or removed through this table. Since user
+	 * processes only reach files through the table, two equal stamps for a
+	 * name mean the file has not changed in between.
+	 *
+	 * @param name the name of the file.
+	 * @return the file's modification stamp.
+	 */
+	public int getStamp(String name) {
+		Integer stamp = stamps.get(name);
+		return stamp == null ? 0 : stamp;
+	}
+
+	private void touch(String name) {
+		stamps.put(name, getStamp(name) + 1);
+	}
+
+	private void release(SharedFile shared) {
+		lock.acquire();
+
+		Lib.assertTrue(shared.references > 0);
+		if (--shared.references == 0) {
+			if (files.get(shared.name) == shared)
+				files.remove(shared.name);
+			shared.file.close();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * A file system handle and the number of references to it.
+	 */
+	private class SharedFile {
+		SharedFile(String name, OpenFile file) {
+			this.name = name;
+			this.file = file;
+		}
+
+		OpenFile newReference() {
+			return new OpenFile(file.getFileSystem(), name) {
+				public int read(int pos, byte[] buf, int offset, int length) {
+					if (closed)
+						return -1;
+
+					return file.read(pos, buf, offset, length);
+				}
+
+				public int write(int pos, byte[] buf, int offset, int length) {
+					if (closed)
+						return -1;
+
+					// stamped afterwards, so a load during the write is not
+					// taken for the new contents
+					int amount = file.write(pos, buf, offset, length);
+					lock.acquire();
+					touch(name);
+					lock.release();
+					return amount;
+				}
+
+				public int length() {
+					return closed ? -1 : file.length();
+				}
+
+				public void close() {
+					if (!closed) {
+						closed = true;
+						release(SharedFile.this);
+					}
+				}
+
+				private boolean closed = false;
+			};
+		}
+
+		String name;
+
+		OpenFile file;
+
+		int references = 0;
+	}
+
+	private HashMap<String, SharedFile> files = new HashMap<String, SharedFile>();
+
+	private HashMap<String, Integer> stamps = new HashMap<String, Integer>();
+
+	private int numShared = 0;
+
+	private Lock lock = new Lock();
+}
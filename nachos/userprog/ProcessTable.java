@@ -0,0 +1,290 @@
+package nachos.userprog;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The kernel-wide table of processes, indexed by process ID. A process keeps
+ * its entry from creation until it has exited and been joined; in between
+ * exiting and being joined it is a zombie, whose entry holds only its exit
+ * status and no longer refers to the process. A process whose parent has
+ * exited is never joined, so its entry is dropped as soon as it exits.
+ *
+ * <p>
+ * The IDs of dropped entries are handed out again, oldest first, so the table
+ * only grows with the number of processes that exist at once, however many
+ * are created over time.
+ */
+public class ProcessTable {
+	/**
+	 * Allocate a new, empty process table.
+	 */
+	public ProcessTable() {
+	}
+
+	/**
+	 * The exit status of a process that has been joined.
+	 */
+	public static class ExitStatus {
+		ExitStatus(int pid, int status, boolean normal) {
+			this.pid = pid;
+			this.status = status;
+			this.normal = normal;
+		}
+
+		/** The ID the process had. */
+		public final int pid;
+
+		/** The status passed to <tt>exit()</tt>. */
+		public final int status;
+
+		/**
+		 * <tt>false</tt> if the process was killed by an unhandled exception.
+		 */
+		public final boolean normal;
+	}
+
+	/**
+	 * Returned by <tt>join()</tt> when not waiting and no child it could
+	 * return has exited yet.
+	 */
+	public static final ExitStatus stillRunning = new ExitStatus(0, 0, false);
+
+	/**
+	 * Add a new process, with no parent, to the table.
+	 *
+	 * @param process the new process.
+	 * @return the process's ID.
+	 */
+	public int add(UserProcess process) {
+		lock.acquire();
+
+		int pid;
+		if (!freePIDs.isEmpty()) {
+			pid = freePIDs.removeFirst();
+		}
+		else {
+			pid = numPIDs++;
+			if (pid == entries.length) {
+				Entry[] grown = new Entry[entries.length * 2];
+				System.arraycopy(entries, 0, grown, 0, entries.length);
+				entries = grown;
+			}
+		}
+
+		entries[pid] = new Entry(pid, process);
+
+		lock.release();
+
+		return pid;
+	}
+
+	/**
+	 * Make a process the child of another, so that the parent can join it.
+	 *
+	 * @param child the new child.
+	 * @param parent its parent.
+	 */
+	public void setParent(UserProcess child, UserProcess parent) {
+		lock.acquire();
+
+		Entry entry = entries[child.PID];
+		Lib.assertTrue(entry.parent == null && !entry.exited);
+		entry.parent = entries[parent.PID];
+		entry.parent.children.add(entry);
+
+		lock.release();
+	}
+
+	/**
+	 * Drop a process that never ran, such as a child whose program could not
+	 * be loaded. Its ID is free for reuse.
+	 *
+	 * @param process the process to drop.
+	 */
+	public void remove(UserProcess process) {
+		lock.acquire();
+
+		Entry entry = entries[process.PID];
+		Lib.assertTrue(entry.children.isEmpty() && !entry.exited);
+		if (entry.parent != null)
+			entry.parent.children.remove(entry);
+		free(entry);
+
+		lock.release();
+	}
+
+	/**
+	 * Return the running process with a given ID.
+	 *
+	 * @param pid the process ID.
+	 * @return the process, or <tt>null</tt> if no running process has that
+	 * ID.
+	 */
+	public UserProcess get(int pid) {
+		lock.acquire();
+
+		Entry entry = (pid >= 0 && pid < entries.length) ? entries[pid] : null;
+		UserProcess process = entry == null ? null : entry.process;
+
+		lock.release();
+
+		return process;
+	}
+
+	/**
+	 * Record that a process has exited. Its children no longer have a parent,
+	 * and those that have already exited are dropped. The process itself is
+	 * dropped at once if it has no parent, and otherwise stays a zombie until
+	 * its parent joins it or exits.
+	 *
+	 * @param process the process that exited.
+	 * @param status its exit status.
+	 * @param normal <tt>false</tt> if it was killed by an unhandled exception.
+	 */
+	public void exit(UserProcess process, int status, boolean normal) {
+		lock.acquire();
+
+		Entry entry = entries[process.PID];
+		Lib.assertTrue(!entry.exited);
+		entry.process = null;
+		entry.exited = true;
+		entry.status = status;
+		entry.normal = normal;
+
+		for (Entry child : entry.children) {
+			child.parent = null;
+			if (child.exited)
+				free(child);
+		}
+		entry.children.clear();
+		entry.zombies.clear();
+
+		if (entry.parent == null) {
+			free(entry);
+		}
+		else {
+			entry.parent.zombies.add(entry);
+			entry.parent.childExited.wakeAll();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Join a child of a process, dropping it from the table once it has
+	 * exited.
+	 *
+	 * @param parent the process joining.
+	 * @param pid the ID of the child to join, or -1 to join whichever child
+	 * exits first.
+	 * @param wait <tt>true</tt> to wait for the child to exit.
+	 * @return the exit status of the child joined, <tt>stillRunning</tt> if
+	 * not waiting and no such child has exited, or <tt>null</tt> if
+	 * <i>pid</i> is not a child of <i>parent</i> or, for -1, if
+	 * <i>parent</i> has no children.
+	 */
+	public ExitStatus join(UserProcess parent, int pid, boolean wait) {
+		lock.acquire();
+
+		Entry self = entries[parent.PID];
+		Entry child = null;
+		if (pid != -1) {
+			child = (pid >= 0 && pid < entries.length) ? entries[pid] : null;
+			if (child == null || child.parent != self) {
+				lock.release();
+				return null;
+			}
+		}
+		else if (self.children.isEmpty()) {
+			lock.release();
+			return null;
+		}
+
+		ExitStatus result;
+		while (true) {
+			Entry zombie = child == null ? self.zombies.peekFirst()
+					: child.exited ? child : null;
+
+			if (zombie != null) {
+				self.zombies.remove(zombie);
+				self.children.remove(zombie);
+				free(zombie);
+
+				result = new ExitStatus(zombie.pid, zombie.status,
+						zombie.normal);
+				break;
+			}
+			if (!wait) {
+				result = stillRunning;
+				break;
+			}
+
+			self.childExited.sleep();
+		}
+
+		lock.release();
+
+		return result;
+	}
+
+	/**
+	 * Return the number of processes in the table, counting zombies.
+	 *
+	 * @return the number of process IDs in use.
+	 */
+	public int getCount() {
+		return numPIDs - freePIDs.size();
+	}
+
+	private void free(Entry entry) {
+		entries[entry.pid] = null;
+		freePIDs.add(entry.pid);
+	}
+
+	/**
+	 * A process, or the exit status of a zombie, and its family.
+	 */
+	private class Entry {
+		Entry(int pid, UserProcess process) {
+			this.pid = pid;
+			this.process = process;
+		}
+
+		int pid;
+
+		/** The process, until it exits. */
+		UserProcess process;
+
+		Entry parent = null;
+
+		/** The children not yet joined, running or not. */
+		HashSet<Entry> children = new HashSet<Entry>();
+
+		/** The children that have exited, in the order they exited. */
+		LinkedList<Entry> zombies = new LinkedList<Entry>();
+
+		/** Signalled whenever a child of this process exits. */
+		Condition childExited = new Condition(lock);
+
+		boolean exited = false;
+
+		int status;
+
+		boolean normal;
+	}
+
+	/** The entry of each process ID, or <tt>null</tt> if it is free. */
+	private Entry[] entries = new Entry[16];
+
+	/** The number of process IDs ever handed out. */
+	private int numPIDs = 0;
+
+	/** The IDs that have been freed, in the order they were freed. */
+	private LinkedList<Integer> freePIDs = new LinkedList<Integer>();
+
+	private Lock lock = new Lock();
+}
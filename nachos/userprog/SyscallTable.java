@@ -0,0 +1,205 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * The table of system calls, indexed by syscall number. Process classes
+ * register a handler for each call they implement, so that a subclass adds
+ * calls by registering them rather than by overriding the whole dispatch.
+ *
+ * <p>
+ * Every entry counts its calls and keeps a histogram of how long they take,
+ * in simulated ticks from the trap to the return to the user program. The
+ * histograms have eight buckets per power of two, so any latency is recorded
+ * to within an eighth of its value however large it is.
+ */
+public class SyscallTable {
+	/**
+	 * Allocate a new, empty syscall table.
+	 *
+	 * @param name the name of the table, for reports.
+	 */
+	public SyscallTable(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * The code run for one syscall.
+	 */
+	public static abstract class Handler {
+		/**
+		 * Carry out the syscall for a process.
+		 *
+		 * @param process the calling process.
+		 * @param a0 the first syscall argument.
+		 * @param a1 the second syscall argument.
+		 * @param a2 the third syscall argument.
+		 * @param a3 the fourth syscall argument.
+		 * @return the value to be returned to the user.
+		 */
+		public abstract int handle(UserProcess process, int a0, int a1, int a2,
+				int a3);
+	}
+
+	/**
+	 * Add a syscall to the table, replacing any already registered under the
+	 * same number.
+	 *
+	 * @param number the syscall number.
+	 * @param name the name of the syscall, for reports.
+	 * @param handler the code that carries it out.
+	 */
+	public void register(int number, String name, Handler handler) {
+		Lib.assertTrue(number >= 0 && number < maxSyscalls);
+
+		entries[number] = new Entry(name, handler);
+	}
+
+	/**
+	 * Carry out a syscall, timing it.
+	 *
+	 * @param process the calling process.
+	 * @param number the syscall number.
+	 * @param a0 the first syscall argument.
+	 * @param a1 the second syscall argument.
+	 * @param a2 the third syscall argument.
+	 * @param a3 the fourth syscall argument.
+	 * @return the value to be returned to the user, or -1 if there is no
+	 * syscall with that number.
+	 */
+	public int dispatch(UserProcess process, int number, int a0, int a1,
+			int a2, int a3) {
+		Entry entry = (number >= 0 && number < maxSyscalls) ? entries[number]
+				: null;
+		if (entry == null) {
+			Lib.debug(dbgSyscall, "Unknown syscall " + number);
+			numUnknown++;
+			return -1;
+		}
+
+		// counted before the call, since exit() and halt() never return
+		entry.numCalls++;
+
+		long start = Machine.timer().getTime();
+		int result = entry.handler.handle(process, a0, a1, a2, a3);
+		entry.latency.record(Machine.timer().getTime() - start);
+
+		return result;
+	}
+
+	/**
+	 * Print the number of calls of each syscall and the distribution of
+	 * their latencies.
+	 */
+	public void print() {
+		System.out.println("Syscalls of " + name + " (latency in ticks): "
+				+ "name, calls, mean, p50, p90, p99, max");
+		for (int number = 0; number < maxSyscalls; number++) {
+			Entry entry = entries[number];
+			if (entry == null || entry.numCalls == 0)
+				continue;
+
+			Histogram h = entry.latency;
+			System.out.println("\t" + number + " " + entry.name + ": "
+					+ entry.numCalls + ", " + h.getMean() + ", "
+					+ h.getPercentile(0.50) + ", " + h.getPercentile(0.90)
+					+ ", " + h.getPercentile(0.99) + ", " + h.getMax());
+		}
+		if (numUnknown > 0)
+			System.out.println("\tunknown: " + numUnknown);
+	}
+
+	private static class Entry {
+		Entry(String name, Handler handler) {
+			this.name = name;
+			this.handler = handler;
+		}
+
+		String name;
+
+		Handler handler;
+
+		/** Calls started, including those that never returned. */
+		long numCalls = 0;
+
+		/** The latencies of calls that returned. */
+		Histogram latency = new Histogram();
+	}
+
+	/**
+	 * A histogram of non-negative values. Values below <tt>subBuckets</tt>
+	 * have a bucket each; above that, each power of two is split into
+	 * <tt>subBuckets</tt> buckets of equal width.
+	 */
+	private static class Histogram {
+		void record(long value) {
+			counts[bucket(value)]++;
+			total++;
+			sum += value;
+			max = Math.max(max, value);
+		}
+
+		long getMean() {
+			return total == 0 ? 0 : sum / total;
+		}
+
+		long getMax() {
+			return max;
+		}
+
+		/**
+		 * Return the smallest bucket bound at or below which a fraction of
+		 * the values lie.
+		 */
+		long getPercentile(double fraction) {
+			long rank = (long) Math.ceil(fraction * total);
+			long seen = 0;
+
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0 && i + 1 < counts.length)
+					return Math.min(lowestValue(i + 1) - 1, max);
+			}
+			return max;
+		}
+
+		private static int bucket(long value) {
+			if (value < subBuckets)
+				return (int) value;
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >> (exponent - subBits)) & (subBuckets - 1);
+			return subBuckets + (exponent - subBits) * subBuckets + sub;
+		}
+
+		private static long lowestValue(int bucket) {
+			if (bucket < subBuckets)
+				return bucket;
+
+			int exponent = (bucket - subBuckets) / subBuckets + subBits;
+			int sub = (bucket - subBuckets) % subBuckets;
+			return (long) (subBuckets + sub) << (exponent - subBits);
+		}
+
+		private static final int subBits = 3, subBuckets = 1 << subBits;
+
+		private long[] counts = new long[bucket(Long.MAX_VALUE) + 1];
+
+		private long total = 0;
+
+		private long sum = 0;
+
+		private long max = 0;
+	}
+
+	/** One more than the largest syscall number. */
+	private static final int maxSyscalls = 64;
+
+	private String name;
+
+	private Entry[] entries = new Entry[maxSyscalls];
+
+	private long numUnknown = 0;
+
+	private static final char dbgSyscall = 'y';
+}
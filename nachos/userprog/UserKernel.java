@@ -1,6 +1,6 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
+import java.util.HashMap;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -25,6 +25,14 @@ public class UserKernel extends ThreadedKernel {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
+		openFiles = new OpenFileTable();
+		mapExecutables = Config.getBoolean("UserKernel.mapExecutables", false);
+		lazyLoad = Config.getBoolean("UserKernel.lazyLoad", false);
+
+		int cacheSize = Config.getInteger("UserKernel.executableCacheSize",
+				262144);
+		if (cacheSize > 0)
+			executableCache = new ExecutableCache(cacheSize);
 
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -32,44 +40,162 @@ public class UserKernel extends ThreadedKernel {
 			}
 		});
 
-		fppLock = new Lock();
-		freePhysicalPages = new LinkedList();
-		pidLock = new Lock();
-		processPid = 0;
+		frames = new FrameAllocator(Machine.processor().getNumPhysPages());
+		processes = new ProcessTable();
 
-		fppLock.acquire();
-		for(int i = 0; i < Machine.processor().getNumPhysPages(); i++){
-			freePhysicalPages.add(i);
-		}
-		fppLock.release();
+		sharedLock = new Lock();
+		sharedPages = new HashMap<String, Integer>();
+		sharedPageKeys = new String[Machine.processor().getNumPhysPages()];
+		frameRefCount = new int[Machine.processor().getNumPhysPages()];
 	}
 
+	/**
+	 * Allocate a number of physical pages at once.
+	 * 
+	 * @param numPages the number of pages to allocate.
+	 * @return the pages allocated, or <tt>null</tt> if there are not enough
+	 * free pages, in which case none are allocated.
+	 */
 	public static int[] allocatePages(int numPages) {
-		if (numPages > freePhysicalPages.size()) {
-			return null;
+		return frames.allocate(numPages);
+	}
+
+	/**
+	 * Return a physical page to the free pool.
+	 * 
+	 * @param pageFreed the page to free.
+	 */
+	public static void freePage(int pageFreed) {
+		frames.free(pageFreed);
+	}
+
+	/**
+	 * Look up a read-only page in the shared page cache and, if it is
+	 * resident, take a reference to it.
+	 * 
+	 * @param key the (executable, section, page) key of the page.
+	 * @return the physical page holding the page, or -1 if it is not cached.
+	 */
+	public static int getSharedPage(String key) {
+		sharedLock.acquire();
+		Integer ppn = sharedPages.get(key);
+		if (ppn != null)
+			frameRefCount[ppn]++;
+		sharedLock.release();
+
+		return ppn == null ? -1 : ppn;
+	}
+
+	/**
+	 * Publish a freshly loaded read-only page in the shared page cache. The
+	 * caller's mapping becomes the first reference to the frame. If another
+	 * process published the same page first, the frame stays private.
+	 * 
+	 * @param key the (executable, section, page) key of the page.
+	 * @param ppn the physical page holding the page.
+	 * @return <tt>true</tt> if the frame is now shared.
+	 */
+	public static boolean addSharedPage(String key, int ppn) {
+		sharedLock.acquire();
+		boolean added = !sharedPages.containsKey(key);
+		if (added) {
+			sharedPages.put(key, ppn);
+			sharedPageKeys[ppn] = key;
+			frameRefCount[ppn] = 1;
+		}
+		sharedLock.release();
+
+		return added;
+	}
+
+	/**
+	 * Take an additional reference to a frame so that it can be mapped by
+	 * another page table, as fork() does. A private frame becomes shared
+	 * between its current owner and the new mapping.
+	 * 
+	 * @param ppn the physical page being shared.
+	 */
+	public static void addFrameReference(int ppn) {
+		sharedLock.acquire();
+		frameRefCount[ppn] = Math.max(frameRefCount[ppn], 1) + 1;
+		sharedLock.release();
+	}
+
+	/**
+	 * Drop one reference to a shared frame. When the last reference goes away
+	 * the page leaves the shared page cache and the frame is freed.
+	 * 
+	 * @param ppn the physical page being unmapped.
+	 * @return <tt>true</tt> if the frame was shared, <tt>false</tt> if it is a
+	 * private frame that the caller must free itself.
+	 */
+	public static boolean releaseSharedPage(int ppn) {
+		sharedLock.acquire();
+		if (frameRefCount[ppn] == 0) {
+			sharedLock.release();
+			return false;
 		}
 
-		int[] pages = new int[numPages];
-		for (int i = 0; i < numPages; i++) {
-			fppLock.acquire();
-			pages[i] = freePhysicalPages.removeLast();
-			fppLock.release();
+		boolean lastReference = --frameRefCount[ppn] == 0;
+		if (lastReference && sharedPageKeys[ppn] != null) {
+			sharedPages.remove(sharedPageKeys[ppn]);
+			sharedPageKeys[ppn] = null;
 		}
-		return pages;
+		sharedLock.release();
+
+		if (lastReference)
+			freePage(ppn);
+
+		return true;
 	}
 
-	public static void freePage(int pageFreed) {
-		fppLock.acquire();
-		freePhysicalPages.add(pageFreed);
-		fppLock.release();
+	/**
+	 * Return the shared page cache key of the page a frame holds.
+	 * 
+	 * @param ppn the physical page.
+	 * @return the key, or <tt>null</tt> if the frame is not in the cache.
+	 */
+	public static String getSharedPageKey(int ppn) {
+		return sharedPageKeys[ppn];
 	}
 
-	public static int getPid() {
-		pidLock.acquire();
-		int currPid = processPid;
-		processPid++;
-		pidLock.release();
-		return currPid;
+	/**
+	 * Test whether a frame is currently mapped through reference counting,
+	 * either from the shared page cache or after fork().
+	 * 
+	 * @param ppn the physical page to test.
+	 * @return <tt>true</tt> if the frame is shared.
+	 */
+	public static boolean isSharedPage(int ppn) {
+		return frameRefCount[ppn] > 0;
+	}
+
+	/**
+	 * Return the number of page table entries mapping a shared frame.
+	 * 
+	 * @param ppn the physical page to test.
+	 * @return the reference count, or 0 if the frame is private.
+	 */
+	public static int getFrameRefCount(int ppn) {
+		return frameRefCount[ppn];
+	}
+
+	/**
+	 * Stop reference counting a frame, either because page replacement is
+	 * reclaiming it and has invalidated all of its mappings itself, or because
+	 * a single mapping is left and the frame becomes that mapping's private
+	 * frame again.
+	 * 
+	 * @param ppn the physical page.
+	 */
+	public static void evictSharedPage(int ppn) {
+		sharedLock.acquire();
+		if (sharedPageKeys[ppn] != null) {
+			sharedPages.remove(sharedPageKeys[ppn]);
+			sharedPageKeys[ppn] = null;
+		}
+		frameRefCount[ppn] = 0;
+		sharedLock.release();
 	}
 
 	/**
@@ -157,20 +283,47 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (executableCache != null)
+			executableCache.print();
+
+		UserProcess.printSyscallTables();
+
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** The files open in any process, shared between processes. */
+	public static OpenFileTable openFiles;
+
+	/** Whether executables are mapped into kernel memory when loaded. */
+	public static boolean mapExecutables;
+
+	/** Whether a process's pages are loaded when first touched. */
+	public static boolean lazyLoad;
+
+	/** Loaded executables, or <tt>null</tt> if they are not cached. */
+	public static ExecutableCache executableCache;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 
-	public static LinkedList<Integer> freePhysicalPages;
+	/** The free physical pages. */
+	public static FrameAllocator frames;
+
+	/** The processes that are running or have exited but not been joined. */
+	public static ProcessTable processes;
+
+	/** Read-only executable pages shared between processes, keyed by
+	 * (executable, section, page). */
+	private static HashMap<String, Integer> sharedPages;
 
-	public static Lock fppLock;
+	/** The shared page cache key of each frame, or <tt>null</tt>. */
+	private static String[] sharedPageKeys;
 
-	private static int processPid;
+	/** The number of page table entries mapping each shared frame. */
+	private static int[] frameRefCount;
 
-	public static Lock pidLock; 
+	private static Lock sharedLock;
 }
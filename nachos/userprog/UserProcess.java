@@ -4,10 +4,13 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
+import nachos.filesys.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its user
@@ -26,17 +29,15 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
-		fileTable = new OpenFile[16];
-		fileTable[0] = UserKernel.console.openForReading();
-		fileTable[1] = UserKernel.console.openForWriting();
+		fileTable = new FileHandle[initialFileTableSize];
+		usedDescriptors = new BitSet();
+		allocateDescriptor(new FileHandle(UserKernel.console.openForReading(), false));
+		allocateDescriptor(new FileHandle(UserKernel.console.openForWriting(), false));
 
-		PID = UserKernel.getPid();
-		//parentPID = -1;
-		//exitStatus = -1; // 0 if success, 1 if error
+		syscallTable = findSyscallTable();
 
-		parentProcess = null;
-		children = new HashMap<Integer, UserProcess>();
-		childrenExitStatus = new HashMap<Integer, Integer>();
+		PID = UserKernel.processes.add(this);
+		//exitStatus = -1; // 0 if success, 1 if error
 
 		// int numPhysPages = Machine.processor().getNumPhysPages();
 		// pageTable = new TranslationEntry[numPhysPages];
@@ -108,6 +109,12 @@ public class UserProcess {
 	 * without including the null terminator. If no null terminator is found,
 	 * returns <tt>null</tt>.
 	 * 
+	 * <p>
+	 * The string is scanned for its terminator a page at a time in main
+	 * memory, so only the bytes up to the terminator are touched. A string
+	 * within one page is converted straight from its frame; a longer one is
+	 * gathered into this process's staging buffer.
+	 * 
 	 * @param vaddr the starting virtual address of the null-terminated string.
 	 * @param maxLength the maximum number of characters in the string, not
 	 * including the null terminator.
@@ -117,18 +124,88 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength + 1];
+		byte[] memory = Machine.processor().getMemory();
+		byte[] buf = null;
+		int length = 0;
+
+		while (length <= maxLength) {
+			int pieceVaddr = vaddr + length;
+			int pieceLength = Math.min(maxLength + 1 - length,
+					pageSize - Processor.offsetFromAddress(pieceVaddr));
+			int pinned = pinRange(pieceVaddr, pieceLength, false);
+			if (pinned < pieceLength) {
+				unpinRange(pieceVaddr, pinned);
+				return null;
+			}
+
+			int paddr = pageTable[Processor.pageFromAddress(pieceVaddr)].ppn
+					* pageSize + Processor.offsetFromAddress(pieceVaddr);
+			int end = paddr;
+			while (end < paddr + pieceLength && memory[end] != 0)
+				end++;
+
+			markPinned(pieceVaddr, pieceLength, false);
 
-		int bytesRead = readVirtualMemory(vaddr, bytes);
+			String string = null;
+			if (end < paddr + pieceLength && buf == null) {
+				string = new String(memory, paddr, end - paddr);
+			}
+			else {
+				if (buf == null)
+					buf = getIOBuffer(maxLength + 1);
+				System.arraycopy(memory, paddr, buf, length, end - paddr);
+				if (end < paddr + pieceLength)
+					string = new String(buf, 0, length + end - paddr);
+			}
 
-		for (int length = 0; length < bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+			unpinRange(pieceVaddr, pieceLength);
+
+			if (string != null)
+				return string;
+			length += pieceLength;
 		}
 
 		return null;
 	}
 
+	/**
+	 * Read an array of 32-bit words, such as the pointers of an argument
+	 * vector, from this process's virtual memory. The whole array is pinned
+	 * and gathered into this process's staging buffer in one pass, rather
+	 * than translated a word at a time.
+	 * 
+	 * @param vaddr the virtual address of the first word.
+	 * @param count the number of words to read.
+	 * @return the words read, or <tt>null</tt> if the array does not lie
+	 * entirely in mapped memory.
+	 */
+	public int[] readVirtualMemoryWords(int vaddr, int count) {
+		Lib.assertTrue(count >= 0);
+
+		if (count > pageTable.length * (pageSize / 4))
+			return null;
+
+		int length = count * 4;
+		byte[] buf = getIOBuffer(length);
+		int amount = 0;
+
+		while (amount < length) {
+			int pinned = pinRange(vaddr + amount, length - amount, false);
+			if (pinned == 0) return null;
+
+			copyPinned(vaddr + amount, buf, amount, pinned, false);
+			unpinRange(vaddr + amount, pinned);
+
+			amount += pinned;
+		}
+
+		int[] words = new int[count];
+		for (int i = 0; i < count; i++)
+			words[i] = Lib.bytesToInt(buf, i * 4);
+
+		return words;
+	}
+
 	/**
 	 * Transfer data from this process's virtual memory to all of the specified
 	 * array. Same as <tt>readVirtualMemory(vaddr, data, 0, data.length)</tt>.
@@ -183,6 +260,9 @@ public class UserProcess {
 
 		while(bytesRemaining > 0){
 
+			if(!pageTable[vpn].valid && faultInPage(vpn))
+				paddr = pageSize * pageTable[vpn].ppn + offset_from_vaddr;
+
 			if(!pageTable[vpn].valid || paddr < 0 || paddr >= memory.length){break;}
 
 			int maxSingleCopy = pageSize - offset_from_vaddr;
@@ -267,6 +347,9 @@ public class UserProcess {
 
 		while(bytesRemaining > 0){
 
+			if(!pageTable[vpn].valid && faultInPage(vpn))
+				paddr = pageSize * pageTable[vpn].ppn + offset_from_vaddr;
+
 			if(!pageTable[vpn].valid || pageTable[vpn].readOnly || paddr < 0 || paddr >= memory.length){break;}
 
 			int maxSingleCopy = pageSize - offset_from_vaddr;
@@ -295,6 +378,174 @@ public class UserProcess {
 		return amount;
 	}
 
+	/**
+	 * Make sure the pages holding a range of virtual memory stay resident
+	 * until <tt>unpinRange()</tt> is called on the same range, so that their
+	 * frames can be used directly. Pages are never replaced here, so this
+	 * only loads any page not yet loaded and checks that the pages are mapped
+	 * and, when <i>writing</i>, writable.
+	 * 
+	 * @param vaddr the first byte of the range.
+	 * @param length the number of bytes in the range.
+	 * @param writing <tt>true</tt> if the range is about to be written.
+	 * @return the number of bytes, starting at <i>vaddr</i>, that are pinned.
+	 */
+	public int pinRange(int vaddr, int length, boolean writing) {
+		if (vaddr < 0 || length <= 0 || vaddr >= pageTable.length * pageSize)
+			return 0;
+
+		length = Math.min(length, pageTable.length * pageSize - vaddr);
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+
+		for (int vpn = firstVPN; vpn <= lastVPN; vpn++) {
+			if (!pageTable[vpn].valid)
+				faultInPage(vpn);
+			if (!pageTable[vpn].valid || (writing && pageTable[vpn].readOnly))
+				return Math.max(Processor.makeAddress(vpn, 0) - vaddr, 0);
+		}
+		return length;
+	}
+
+	/**
+	 * Drop the pins taken by <tt>pinRange()</tt> on a range of virtual memory.
+	 * 
+	 * @param vaddr the first byte of the range.
+	 * @param length the number of bytes <tt>pinRange()</tt> returned.
+	 */
+	public void unpinRange(int vaddr, int length) {
+	}
+
+	/**
+	 * Move data between an open file and a range of user memory, which may be
+	 * any length. The range is pinned, normally in one piece, and each pinned
+	 * piece costs a single file operation. A piece whose pages lie in
+	 * consecutive frames is read or written in place in main memory; any
+	 * other piece goes through this process's staging buffer and is
+	 * scattered to or gathered from its frames.
+	 * 
+	 * @param file the file to read or write at its current position.
+	 * @param vaddr the first byte of user memory.
+	 * @param length the number of bytes to move.
+	 * @param reading <tt>true</tt> to read from the file into memory.
+	 * @return the number of bytes moved, or -1 if the range is not valid user
+	 * memory or the file fails.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int length, boolean reading) {
+		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
+
+		while (amount < length) {
+			int pieceVaddr = vaddr + amount;
+			int pinned = pinRange(pieceVaddr, length - amount, reading);
+			if (pinned == 0) return -1;
+
+			int n;
+			if (isPhysicallyContiguous(pieceVaddr, pinned)) {
+				int paddr = pageTable[Processor.pageFromAddress(pieceVaddr)].ppn
+						* pageSize + Processor.offsetFromAddress(pieceVaddr);
+				n = reading ? file.read(memory, paddr, pinned)
+						: file.write(memory, paddr, pinned);
+				if (n > 0)
+					markPinned(pieceVaddr, n, reading);
+			}
+			else if (reading) {
+				byte[] buf = getIOBuffer(pinned);
+				n = file.read(buf, 0, pinned);
+				if (n > 0)
+					copyPinned(pieceVaddr, buf, 0, n, true);
+			}
+			else {
+				byte[] buf = getIOBuffer(pinned);
+				copyPinned(pieceVaddr, buf, 0, pinned, false);
+				n = file.write(buf, 0, pinned);
+			}
+
+			unpinRange(pieceVaddr, pinned);
+
+			if (n < 0) return -1;
+			amount += n;
+			if (n < pinned) break;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Test whether a pinned range of virtual memory lies in consecutive
+	 * frames, so that it is a single extent of main memory.
+	 */
+	private boolean isPhysicallyContiguous(int vaddr, int length) {
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+
+		for (int vpn = firstVPN + 1; vpn <= lastVPN; vpn++) {
+			if (pageTable[vpn].ppn != pageTable[vpn - 1].ppn + 1)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy between an array and a range of virtual memory that the caller has
+	 * pinned, one page-sized extent at a time.
+	 * 
+	 * @param vaddr the first byte of virtual memory.
+	 * @param data the array.
+	 * @param offset the first byte of the array.
+	 * @param length the number of bytes to copy.
+	 * @param writing <tt>true</tt> to copy from the array into memory.
+	 */
+	protected void copyPinned(int vaddr, byte[] data, int offset, int length,
+			boolean writing) {
+		byte[] memory = Machine.processor().getMemory();
+
+		markPinned(vaddr, length, writing);
+
+		while (length > 0) {
+			int vpn = Processor.pageFromAddress(vaddr);
+			int pageOffset = Processor.offsetFromAddress(vaddr);
+			int paddr = pageTable[vpn].ppn * pageSize + pageOffset;
+			int amountToCopy = Math.min(length, pageSize - pageOffset);
+
+			if (writing)
+				System.arraycopy(data, offset, memory, paddr, amountToCopy);
+			else
+				System.arraycopy(memory, paddr, data, offset, amountToCopy);
+
+			vaddr += amountToCopy;
+			offset += amountToCopy;
+			length -= amountToCopy;
+		}
+	}
+
+	/**
+	 * Set the used bit, and when <i>writing</i> the dirty bit, of every page
+	 * in a pinned range of virtual memory.
+	 */
+	private void markPinned(int vaddr, int length, boolean writing) {
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+
+		for (int vpn = firstVPN; vpn <= lastVPN; vpn++) {
+			pageTable[vpn].used = true;
+			if (writing)
+				pageTable[vpn].dirty = true;
+		}
+	}
+
+	/**
+	 * Return this process's staging buffer for file I/O, grown if needed to
+	 * hold at least <i>size</i> bytes. The buffer is kept between calls so
+	 * that syscalls do not allocate one each time.
+	 */
+	private byte[] getIOBuffer(int size) {
+		if (ioBuffer == null || ioBuffer.length < size)
+			ioBuffer = new byte[Math.max(size, pageSize)];
+
+		return ioBuffer;
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -308,17 +559,13 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
+		// the stamp changes whenever the file is rewritten, so that a new
+		// executable does not share pages with its old contents
+		executableName = name;
+		executableKey = ExecutableCache.getKey(name);
 
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
+		coff = openCoff(name);
+		if (coff == null) {
 			Lib.debug(dbgProcess, "\tcoff load failed");
 			return false;
 		}
@@ -387,30 +634,71 @@ public class UserProcess {
 	 * memory. If this returns successfully, the process will definitely be run
 	 * (this is the last step in process initialization that can fail).
 	 * 
+	 * <p>
+	 * If <tt>UserKernel.lazyLoad</tt> is set, only the argument page is
+	 * allocated here; every other page is loaded by <tt>faultInPage()</tt>
+	 * when it is first touched, so a process only ever holds the pages it
+	 * uses.
+	 * 
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		// TranslationEntry currTranslation;
+		pageTable = new TranslationEntry[numPages];
 
-		// if (numPages > Machine.processor().getNumPhysPages()) {
-		// 	coff.close();
-		// 	Lib.debug(dbgProcess, "\tinsufficient physical memory");
-		// 	return false;
-		// }
+		if (UserKernel.lazyLoad) {
+			for (int s = 0; s < coff.getNumSections(); s++) {
+				CoffSection section = coff.getSection(s);
+				for (int i = 0; i < section.getLength(); i++) {
+					int vpn = section.getFirstVPN() + i;
+					pageTable[vpn] = new TranslationEntry(vpn, -1, false, section.isReadOnly(), false, false);
+				}
+			}
+			for (int vpn = numPages - stackPages - 1; vpn < numPages; vpn++)
+				pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
 
+			// the arguments are written as soon as this returns
+			if (!faultInPage(numPages - 1)) {
+				pageTable = null;
+				coff.close();
+				Lib.debug(dbgProcess, "\tinsufficient physical memory");
+				return false;
+			}
 
-		int[] ppnPages = UserKernel.allocatePages(numPages);
+			return true;
+		}
+
+		// map read-only pages another instance of this executable has loaded
+		int numShared = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isReadOnly())
+				continue;
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+				int ppn = UserKernel.getSharedPage(sharedPageKey(s, i));
+				if (ppn == -1)
+					continue;
+
+				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, false, false);
+				numShared++;
+			}
+		}
+
+		int[] ppnPages = UserKernel.allocatePages(numPages - numShared);
 
 		if (ppnPages == null) {
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				if (pageTable[vpn] != null)
+					UserKernel.releaseSharedPage(pageTable[vpn].ppn);
+			}
+			pageTable = null;
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
-		
-		pageTable = new TranslationEntry[numPages];
-		for (int i = 0; i < numPages; i++) {
-			pageTable[i] = new TranslationEntry(i, ppnPages[i], true, false, false, false);
-		}
+
+		int nextPage = 0;
 
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -421,26 +709,23 @@ public class UserProcess {
 
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
-				int ppn = ppnPages[vpn];
+				if (pageTable[vpn] != null)
+					continue;
 
-				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
+				int ppn = ppnPages[nextPage++];
 
-				// currTranslation = pageTable[vpn];
-				// // returns false if the TranslationEntry does not exist
-				// if(currTranslation == null) {
-				// 	return false;
-				// }
-				// // otherwise sets the readOnly bit
-				// currTranslation.readOnly = section.isReadOnly();
+				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
 
 				section.loadPage(i, ppn);
-			}
 
-			// stackPages
-			for (int i = numPages - stackPages - 1; i < numPages; i++) {
-				pageTable[i] = new TranslationEntry(i, ppnPages[i], true, false, false, false);
+				if (section.isReadOnly())
+					UserKernel.addSharedPage(sharedPageKey(s, i), ppn);
 			}
+		}
 
+		// stack and argument pages
+		for (int vpn = numPages - stackPages - 1; vpn < numPages; vpn++) {
+			pageTable[vpn] = new TranslationEntry(vpn, ppnPages[nextPage++], true, false, false, false);
 		}
 
 		return true;
@@ -452,7 +737,10 @@ public class UserProcess {
 	protected void unloadSections() {
 
 		for (int i = 0; i < pageTable.length; i++) {
-			UserKernel.freePage(pageTable[i].ppn);
+			if (!pageTable[i].valid)
+				continue;
+			if (!UserKernel.releaseSharedPage(pageTable[i].ppn))
+				UserKernel.freePage(pageTable[i].ppn);
 		}
 
 		coff.close();
@@ -460,16 +748,214 @@ public class UserProcess {
 		pageTable = null;
 	}
 
+	/**
+	 * Load a page that has not been touched yet: a page of a section is
+	 * mapped from another instance of this executable or loaded from the
+	 * executable, and a stack or argument page is zero-filled. Pages are
+	 * never replaced, so if no frame is free the page stays unloaded.
+	 * 
+	 * @param vpn the virtual page to load.
+	 * @return <tt>true</tt> if the page is now loaded.
+	 */
+	private boolean faultInPage(int vpn) {
+		if (vpn < 0 || vpn >= numPages || pageTable[vpn] == null)
+			return false;
+		if (pageTable[vpn].valid)
+			return true;
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			int i = vpn - section.getFirstVPN();
+			if (i < 0 || i >= section.getLength())
+				continue;
+
+			if (section.isReadOnly()) {
+				int ppn = UserKernel.getSharedPage(sharedPageKey(s, i));
+				if (ppn != -1) {
+					pageTable[vpn].ppn = ppn;
+					pageTable[vpn].valid = true;
+					return true;
+				}
+			}
+
+			int[] ppns = UserKernel.allocatePages(1);
+			if (ppns == null)
+				return false;
+
+			section.loadPage(i, ppns[0]);
+
+			// shared only once loaded, so no other process sees it half-read
+			if (section.isReadOnly())
+				UserKernel.addSharedPage(sharedPageKey(s, i), ppns[0]);
+
+			pageTable[vpn].ppn = ppns[0];
+			pageTable[vpn].valid = true;
+			return true;
+		}
+
+		int[] ppns = UserKernel.allocatePages(1);
+		if (ppns == null)
+			return false;
+
+		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, ppns[0] * pageSize, (ppns[0] + 1) * pageSize, (byte) 0);
+
+		pageTable[vpn].ppn = ppns[0];
+		pageTable[vpn].valid = true;
+		return true;
+	}
+
+	/**
+	 * Load an executable's headers. If <tt>UserKernel.executableCache</tt> is
+	 * set, the executable is taken from the cache, so that a program run again
+	 * is neither read nor parsed again. Otherwise it is opened through the
+	 * kernel's open-file table and, if <tt>UserKernel.mapExecutables</tt> is
+	 * set, mapped into kernel memory, so that its sections are loaded by
+	 * copying rather than by one file system read per page.
+	 * 
+	 * @param name the name of the file containing the executable.
+	 * @return the executable, or <tt>null</tt> if it could not be loaded.
+	 */
+	private Coff openCoff(String name) {
+		if (UserKernel.executableCache != null)
+			return UserKernel.executableCache.open(name);
+
+		OpenFile executable = UserKernel.openFiles.open(name, false);
+		if (executable != null && UserKernel.mapExecutables)
+			executable = MappedFile.map(executable);
+		if (executable == null)
+			return null;
+
+		try {
+			return new Coff(executable);
+		}
+		catch (EOFException e) {
+			executable.close();
+			return null;
+		}
+	}
+
+	/**
+	 * Return the key under which a page of a read-only section of this
+	 * process's executable is kept in the shared page cache.
+	 * 
+	 * @param section the section number.
+	 * @param spn the page number within the section.
+	 * @return the shared page cache key.
+	 */
+	protected String sharedPageKey(int section, int spn) {
+		return executableKey + ":" + section + ":" + spn;
+	}
+
+	/**
+	 * Initialize this process as a copy of <i>parent</i> for <tt>fork()</tt>.
+	 * Reopens the parent's executable and duplicates its address space. The
+	 * child shares the parent's file descriptors, and with them their
+	 * positions, as if each had been passed to <tt>dup()</tt>.
+	 * 
+	 * @param parent the process calling <tt>fork()</tt>.
+	 * @return <tt>true</tt> if the child was successfully created.
+	 */
+	protected boolean forkFrom(UserProcess parent) {
+		coff = openCoff(parent.executableName);
+		if (coff == null) {
+			Lib.debug(dbgProcess, "\tcoff load failed");
+			return false;
+		}
+
+		executableName = parent.executableName;
+		executableKey = parent.executableKey;
+		workingDirectory = parent.workingDirectory;
+		numPages = parent.numPages;
+
+		if (!copyAddressSpace(parent))
+			return false;
+
+		closeAllDescriptors();
+		fileTable = new FileHandle[parent.fileTable.length];
+		for (int fd = parent.usedDescriptors.nextSetBit(0); fd >= 0;
+				fd = parent.usedDescriptors.nextSetBit(fd + 1)) {
+			parent.fileTable[fd].reference();
+			fileTable[fd] = parent.fileTable[fd];
+			usedDescriptors.set(fd);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Give this process a copy of the parent's address space. Read-only pages
+	 * are shared through their frame reference counts; every other page is
+	 * copied into a newly allocated frame. Like <tt>loadSections()</tt>, this
+	 * closes the executable if it fails.
+	 * 
+	 * @param parent the process calling <tt>fork()</tt>.
+	 * @return <tt>true</tt> if the address space was successfully copied.
+	 */
+	protected boolean copyAddressSpace(UserProcess parent) {
+		int numWritable = 0;
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (parent.pageTable[vpn].valid && !parent.pageTable[vpn].readOnly)
+				numWritable++;
+		}
+
+		int[] ppnPages = UserKernel.allocatePages(numWritable);
+
+		if (ppnPages == null) {
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		pageTable = new TranslationEntry[numPages];
+		int nextPage = 0;
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = parent.pageTable[vpn];
+
+			// a page the parent never touched is still in its initial state,
+			// so the child loads it for itself
+			if (!entry.valid) {
+				pageTable[vpn] = new TranslationEntry(vpn, -1, false, entry.readOnly, false, false);
+				continue;
+			}
+
+			if (entry.readOnly) {
+				UserKernel.addFrameReference(entry.ppn);
+				pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true, true, false, false);
+				continue;
+			}
+
+			int ppn = ppnPages[nextPage++];
+			System.arraycopy(memory, entry.ppn * pageSize, memory, ppn * pageSize, pageSize);
+			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
+		}
+
+		return true;
+	}
+
 	/**
 	 * Initialize the processor's registers in preparation for running the
 	 * program loaded into this process. Set the PC register to point at the
 	 * start function, set the stack pointer register to point at the top of the
 	 * stack, set the A0 and A1 registers to argc and argv, respectively, and
 	 * initialize all other registers to 0.
+	 * 
+	 * <p>
+	 * A child created by <tt>fork()</tt> instead resumes with a copy of its
+	 * parent's registers.
 	 */
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		if (forkRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+			forkRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -488,8 +974,8 @@ public class UserProcess {
 	 */
 	private int handleHalt() {
 
-		if (parentProcess != null) {
-			Lib.debug('a', "Not invoked by parent process; not halting");
+		if (PID != 0) {
+			Lib.debug('a', "Not invoked by root process; not halting");
 			return -1;
 		}
 
@@ -512,25 +998,13 @@ public class UserProcess {
 
 		System.out.println("UserProcess.handleExit (" + status + ")");
 
-		if(parentProcess != null){
-			parentProcess.childrenExitStatus.put(PID, status);
-		}
-
 		//exitStatus = status;
 
 		unloadSections();
 
-		for (int i = 0; i < 16; i++) {
-			if (fileTable[i] == null) continue;
-			fileTable[i].close();
-			fileTable[i] = null;
-		}
-		fileTable = null;
+		closeAllDescriptors();
 
-		for (Map.Entry<Integer,UserProcess> e : children.entrySet()) {
-			e.getValue().parentProcess = null;
-		}
-		children.clear();
+		UserKernel.processes.exit(this, status, true);
 
 		if(PID == 0){
 			Kernel.kernel.terminate();
@@ -549,54 +1023,90 @@ public class UserProcess {
 	 * Handle the creat() system call.
 	 */
 	private int handleCreate(int vaName) {
-	    String fileName = readVirtualMemoryString(vaName, 256);
+	    String fileName = readPath(vaName);
 
 		if(fileName == null){return -1;}
 
-		//Check fileTable[2-15] for open slot
-		int idx = -1;
-		for(int i = 0; i < 16; i++){
-			if(fileTable[i] == null){
-				idx = i;
-				break;
-			}
-		}
-
-		if(idx == -1){return -1;}
+		if(usedDescriptors.nextClearBit(0) >= maxFileDescriptors){return -1;}
 
-		OpenFile of = ThreadedKernel.fileSystem.open(fileName, true);
+		OpenFile of = UserKernel.openFiles.open(fileName, true);
 
 		if(of == null){return -1;}
 
-		fileTable[idx] = of;
-		return idx;
+		return allocateDescriptor(new FileHandle(of, true));
 	}
 
 	/**
 	 * Handle the open() system call.
 	 */
 	private int handleOpen(int vaName) {
-	    String fileName = readVirtualMemoryString(vaName, 256);
+	    String fileName = readPath(vaName);
 
 		if(fileName == null){return -1;}
 
-		//Check fileTable[2-15] for open slot
-		int idx = -1;
-		for(int i = 0; i < 16; i++){
-			if(fileTable[i] == null){
-				idx = i;
-				break;
-			}
+		if(usedDescriptors.nextClearBit(0) >= maxFileDescriptors){return -1;}
+
+		OpenFile of = UserKernel.openFiles.open(fileName, false);
+
+		if(of == null){return -1;}
+
+		return allocateDescriptor(new FileHandle(of, true));
+	}
+
+	/**
+	 * Return the file open under a file descriptor.
+	 * 
+	 * @param fd the file descriptor.
+	 * @return the open file, or <tt>null</tt> if <i>fd</i> is not open.
+	 */
+	protected OpenFile getOpenFile(int fd) {
+		if (fd < 0 || fd >= fileTable.length) return null;
+
+		return fileTable[fd];
+	}
+
+	/**
+	 * Install a handle under the lowest free file descriptor, growing the
+	 * descriptor table if it is full.
+	 * 
+	 * @param file the handle to install.
+	 * @return the file descriptor, or -1 if the process has
+	 * <tt>maxFileDescriptors</tt> open already, in which case <i>file</i> is
+	 * closed.
+	 */
+	private int allocateDescriptor(FileHandle file) {
+		int fd = usedDescriptors.nextClearBit(0);
+		if (fd >= maxFileDescriptors) {
+			file.close();
+			return -1;
 		}
 
-		if(idx == -1){return -1;}
+		installDescriptor(fd, file);
+		return fd;
+	}
 
-		OpenFile of = ThreadedKernel.fileSystem.open(fileName, false);
+	private void installDescriptor(int fd, FileHandle file) {
+		if (fd >= fileTable.length) {
+			int size = fileTable.length;
+			while (size <= fd) size *= 2;
+			fileTable = Arrays.copyOf(fileTable, Math.min(size, maxFileDescriptors));
+		}
 
-		if(of == null){return -1;}
+		fileTable[fd] = file;
+		usedDescriptors.set(fd);
+	}
 
-		fileTable[idx] = of;
-		return idx;
+	private void closeDescriptor(int fd) {
+		fileTable[fd].close();
+		fileTable[fd] = null;
+		usedDescriptors.clear(fd);
+	}
+
+	private void closeAllDescriptors() {
+		for (int fd = usedDescriptors.nextSetBit(0); fd >= 0;
+				fd = usedDescriptors.nextSetBit(fd + 1)) {
+			closeDescriptor(fd);
+		}
 	}
 
 	/**
@@ -616,38 +1126,11 @@ public class UserProcess {
 
 		// return numBytesReadVirt;
 
-	    if(fd < 0 || fd > 15 || fileTable[fd] == null || buffer < 0 || count < 0){return -1;}
+	    if(getOpenFile(fd) == null || buffer < 0 || count < 0){return -1;}
 
 		OpenFile toRead = fileTable[fd];
 
-		int amount = 0;
-
-		int bytesRemaining = count;
-
-		while(bytesRemaining > 0){
-
-			int localBufferSize = Math.min(pageSize, bytesRemaining);
-			byte[] localBuffer = new byte[localBufferSize];
-
-			int numBytesRead = toRead.read(localBuffer, 0, localBufferSize);
-
-			if(numBytesRead < 0){return -1;}
-			// Lib.debug(dbgProcess, "numBytesRead " + numBytesRead);
-
-			//if(numBytesRead == 0){break;}
-
-			int numBytesWritten = writeVirtualMemory(buffer, localBuffer, 0, numBytesRead);
-
-			// Lib.debug(dbgProcess, "wrote " + numBytesWritten + " read " + numBytesRead);
-			if(numBytesWritten != numBytesRead){return -1;}
-
-			buffer += numBytesWritten;
-			amount += numBytesWritten;
-			bytesRemaining -= numBytesWritten;
-
-			if (numBytesRead < localBufferSize) break;
-
-		}
+		int amount = transferFile(toRead, buffer, count, true);
 
 		return amount;
 
@@ -675,79 +1158,234 @@ public class UserProcess {
 
 		// return numBytesWritten;
 
-		if(fd < 0 || fd > 15 || fileTable[fd] == null || buffer < 0 || count < 0){return -1;}
+		if(getOpenFile(fd) == null || buffer < 0 || count < 0){return -1;}
 
 		OpenFile toWrite = fileTable[fd];
 
-		int amount = 0;
+		int amount = transferFile(toWrite, buffer, count, false);
 
-		int bytesRemaining = count;
+		return amount;
 
-		while(bytesRemaining > 0){
+		//Write into file from buffer
+		//Read data from user buffer into local buffer
+		//Then write to fileTable[fd] using fileTable[fd].write()
+	}
 
-			int localBufferSize = Math.min(pageSize, bytesRemaining);
-			byte[] localBuffer = new byte[localBufferSize];
+	/**
+	 * Read the <tt>struct iovec</tt> array of a readv() or writev() call.
+	 * 
+	 * @return the buffers as alternating addresses and lengths, or
+	 * <tt>null</tt> if the array is not valid or any buffer does not lie
+	 * inside the address space.
+	 */
+	private int[] readIovecs(int iov, int iovcnt) {
+		if (iovcnt < 0 || iovcnt > maxIovecs) return null;
 
-			int numBytesRead = readVirtualMemory(buffer, localBuffer, 0, localBufferSize);
+		int[] vec = readVirtualMemoryWords(iov, iovcnt * 2);
+		if (vec == null) return null;
 
-			// Lib.debug(dbgProcess, "read " + numBytesRead);
-			if(numBytesRead < 0){return -1;}
+		for (int i = 0; i < iovcnt; i++) {
+			int base = vec[2 * i], length = vec[2 * i + 1];
+			if (base < 0 || length < 0
+					|| (long) base + length > pageTable.length * pageSize)
+				return null;
+		}
 
-			//if(numBytesRead == 0){break;}
+		return vec;
+	}
 
-			int numBytesWritten = toWrite.write(localBuffer, 0, numBytesRead);
+	/**
+	 * Check that every buffer of a readv() or writev() call is mapped and,
+	 * for readv(), writable, by pinning it a piece at a time as
+	 * <tt>transferFile()</tt> would. Nothing is left pinned.
+	 */
+	private boolean checkIovecs(int[] vec, int iovcnt, boolean reading) {
+		for (int i = 0; i < iovcnt; i++) {
+			int base = vec[2 * i], length = vec[2 * i + 1];
+
+			for (int checked = 0; checked < length;) {
+				int pinned = pinRange(base + checked, length - checked, reading);
+				if (pinned == 0) return false;
+				unpinRange(base + checked, pinned);
+				checked += pinned;
+			}
+		}
+		return true;
+	}
 
-			// if(numBytesWritten == -1){return -1;}
+	/**
+	 * Handle the readv() system call. Every buffer is checked before the file
+	 * is touched, and each is then filled in turn through
+	 * <tt>transferFile()</tt>, stopping at the first that is not filled.
+	 */
+	private int handleReadv(int fd, int iov, int iovcnt) {
+		if(getOpenFile(fd) == null){return -1;}
 
-			// if(numBytesWritten == 0){break;}
+		int[] vec = readIovecs(iov, iovcnt);
+		if (vec == null || !checkIovecs(vec, iovcnt, true)) return -1;
 
-			// Lib.debug(dbgProcess, "read " + numBytesRead + " wrote " + numBytesWritten);
-			if (numBytesWritten != numBytesRead) return -1;
+		return transferIovecs(fileTable[fd], vec, iovcnt, true);
+	}
 
-			buffer += numBytesWritten;
-			amount += numBytesWritten;
-			bytesRemaining -= numBytesWritten;
+	/**
+	 * Handle the writev() system call. Every buffer is checked before the file
+	 * is touched, and each is then written in turn through
+	 * <tt>transferFile()</tt>.
+	 */
+	private int handleWritev(int fd, int iov, int iovcnt) {
+		if(getOpenFile(fd) == null){return -1;}
 
-			if (numBytesRead < localBufferSize) break;
+		int[] vec = readIovecs(iov, iovcnt);
+		if (vec == null || !checkIovecs(vec, iovcnt, false)) return -1;
 
+		return transferIovecs(fileTable[fd], vec, iovcnt, false);
+	}
+
+	/**
+	 * Move data between a file and checked iovec buffers, one
+	 * <tt>transferFile()</tt> per buffer.
+	 * 
+	 * @return the number of bytes moved, or -1 if the first buffer fails.
+	 * Once any bytes have moved they are counted even if a later buffer
+	 * fails, so that data taken from the file is never lost.
+	 */
+	private int transferIovecs(OpenFile file, int[] vec, int iovcnt,
+			boolean reading) {
+		int amount = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			int length = vec[2 * i + 1];
+			int n = transferFile(file, vec[2 * i], length, reading);
+			if (n < 0) return amount > 0 ? amount : -1;
+
+			amount += n;
+			if (n < length) break;
 		}
 
 		return amount;
-
-		//Write into file from buffer
-		//Read data from user buffer into local buffer
-		//Then write to fileTable[fd] using fileTable[fd].write()
 	}
 
 	/**
 	 * Handle the close() system call.
 	 */
 	private int handleClose(int fd) {
-		if(fd < 0 || fd > 15 || fileTable[fd] == null){return -1;}
+		if(getOpenFile(fd) == null){return -1;}
 
-		OpenFile toClose = fileTable[fd];
-		toClose.close();
-		fileTable[fd] = null;
+		closeDescriptor(fd);
 
 		return 0;
-	    
+	}
+
+	/**
+	 * Handle the dup() system call.
+	 */
+	private int handleDup(int fd) {
+		if(getOpenFile(fd) == null){return -1;}
+
+		int newFd = usedDescriptors.nextClearBit(0);
+		if(newFd >= maxFileDescriptors){return -1;}
+
+		fileTable[fd].reference();
+		installDescriptor(newFd, fileTable[fd]);
+		return newFd;
+	}
+
+	/**
+	 * Handle the dup2() system call.
+	 */
+	private int handleDup2(int fd, int newFd) {
+		if(getOpenFile(fd) == null || newFd < 0 || newFd >= maxFileDescriptors){return -1;}
+
+		if(newFd == fd){return newFd;}
+
+		if(getOpenFile(newFd) != null) closeDescriptor(newFd);
+
+		fileTable[fd].reference();
+		installDescriptor(newFd, fileTable[fd]);
+		return newFd;
 	}
 
 	/**
 	 * Handle the unlink() system call.
 	 */
 	private int handleUnlink(int vaName) {
-		String fileName = readVirtualMemoryString(vaName, 256);
+		String fileName = readPath(vaName);
 
 		if(fileName == null){return -1;}
 
-		boolean successfullyRemoved = ThreadedKernel.fileSystem.remove(fileName);
+		boolean successfullyRemoved = UserKernel.openFiles.remove(fileName);
 
 		if(!successfullyRemoved){return -1;}
 
 		return 0;
 	}
 
+	/**
+	 * Handle the mkdir() system call.
+	 */
+	private int handleMkdir(int vaName) {
+		String path = readPath(vaName);
+		if (path == null) return -1;
+
+		if (!(ThreadedKernel.fileSystem instanceof ExtentFileSystem)) return -1;
+
+		return ((ExtentFileSystem) ThreadedKernel.fileSystem).mkdir(path) ? 0 : -1;
+	}
+
+	/**
+	 * Handle the chdir() system call. Every file system has a root directory,
+	 * but only the extent file system has others.
+	 */
+	private int handleChdir(int vaName) {
+		String path = readPath(vaName);
+		if (path == null) return -1;
+
+		if (path.length() > 0
+				&& !(ThreadedKernel.fileSystem instanceof ExtentFileSystem
+						&& ((ExtentFileSystem) ThreadedKernel.fileSystem).isDirectory(path)))
+			return -1;
+
+		workingDirectory = path;
+		return 0;
+	}
+
+	/**
+	 * Read a path from user memory and return it relative to the root
+	 * directory. A path that does not start with <tt>/</tt> is taken from the
+	 * working directory, and <tt>.</tt> and <tt>..</tt> components are
+	 * removed, so a plain file name is passed to the file system unchanged.
+	 * 
+	 * @param vaName the virtual address of the path.
+	 * @return the path from the root, with no leading <tt>/</tt>, or
+	 * <tt>null</tt> if the path could not be read.
+	 */
+	private String readPath(int vaName) {
+		String name = readVirtualMemoryString(vaName, 256);
+		if (name == null) return null;
+
+		if (!name.startsWith("/"))
+			name = workingDirectory + "/" + name;
+
+		LinkedList<String> components = new LinkedList<String>();
+		for (String component : name.split("/")) {
+			if (component.length() == 0 || component.equals(".")) continue;
+
+			if (component.equals("..")) {
+				if (!components.isEmpty()) components.removeLast();
+			}
+			else {
+				components.add(component);
+			}
+		}
+
+		StringBuilder path = new StringBuilder();
+		for (String component : components) {
+			if (path.length() > 0) path.append('/');
+			path.append(component);
+		}
+
+		return path.toString();
+	}
+
 	private int handleExec(int vaName, int argc, int argv) {
 		// int vaName is virtual address to filename
 		// int argc number of arguments
@@ -756,70 +1394,243 @@ public class UserProcess {
 		// bullet proof
 		if (vaName < 0 || argc < 0 || argv < 0) return -1;
 
-		String filename = readVirtualMemoryString(vaName, 256);
+		String filename = readPath(vaName);
 
 		if (filename == null) return -1; // should check if this is coff file?
 
+		int[] vaArgs = readVirtualMemoryWords(argv, argc);
+		if (vaArgs == null) return -1;
+
 		String[] args = new String[argc];
-		byte[] buffer = new byte[4]; // for reading va to string
 
 		for (int i = 0; i < argc; i++) {
-			int bytesRead = readVirtualMemory(argv + (4 * i), buffer);
-			if (bytesRead < 4) return -1;
-
-			int vaArg = Lib.bytesToInt(buffer, 0);
-			String arg = readVirtualMemoryString(vaArg, 256);
+			String arg = readVirtualMemoryString(vaArgs[i], 256);
 
 			if (arg == null) return -1;
 			args[i] = arg;
 		}
 
-		UserProcess childProcess = new VMProcess();
-		childProcess.parentProcess = this;
+		UserProcess childProcess = UserProcess.newUserProcess();
+		childProcess.workingDirectory = workingDirectory;
 		int childPID = childProcess.PID;
 
-		children.put(childPID, childProcess);
+		UserKernel.processes.setParent(childProcess, this);
 
 		boolean childIsRun = childProcess.execute(filename, args);
 		if (childIsRun) return childPID;
 
+		childProcess.closeAllDescriptors();
+		UserKernel.processes.remove(childProcess);
 		return -1;
 	}
 
+	/**
+	 * Handle the join() system call. The child's entry in the process table
+	 * holds its exit status once it has exited, so it can be joined whether it
+	 * is still running or not.
+	 */
 	private int handleJoin(int processID, int status_addr) {
 
-		if(!children.containsKey(processID)){return -1;}
+		if(processID < 0){return -1;}
 
 		if(status_addr < 0 || Processor.pageFromAddress(status_addr) >= pageTable.length){return -1;}
 
-		UserProcess childProcess = children.get(processID);
+		ProcessTable.ExitStatus exit = UserKernel.processes.join(this, processID, true);
+		if(exit == null){return -1;}
 
-		if(childProcess.thread == null){ return 1;}
+		byte[] childExitStatusBytes = Lib.bytesFromInt(exit.status);
+		writeVirtualMemory(status_addr, childExitStatusBytes);
 
-		childProcess.thread.join();
+		return exit.normal ? 1 : 0;
+	}
 
-		children.remove(processID);
-		childProcess.parentProcess = null;
+	/**
+	 * Handle the waitpid() system call, which is join() extended to any child
+	 * and to polling. Returns the ID of the child joined, 0 if
+	 * <tt>WNOHANG</tt> was given and no such child has exited yet, or -1.
+	 */
+	private int handleWaitpid(int processID, int status_addr, int options) {
 
+		if(processID < -1 || (options & ~waitNoHang) != 0){return -1;}
 
-		if(!childrenExitStatus.containsKey(processID)){
-			Lib.debug(dbgProcess, "join unhandled");
-			return 0;
+		if(status_addr < 0 || Processor.pageFromAddress(status_addr) >= pageTable.length){return -1;}
+
+		ProcessTable.ExitStatus exit = UserKernel.processes.join(this,
+				processID, (options & waitNoHang) == 0);
+		if(exit == null){return -1;}
+		if(exit == ProcessTable.stillRunning){return 0;}
+
+		writeVirtualMemory(status_addr, Lib.bytesFromInt(exit.status));
+
+		return exit.pid;
+	}
+
+	/**
+	 * Handle the fork() system call. The child resumes from the same syscall
+	 * with a return value of 0.
+	 */
+	private int handleFork() {
+		Processor processor = Machine.processor();
+
+		UserProcess childProcess = UserProcess.newUserProcess();
+		if (!childProcess.forkFrom(this)) {
+			childProcess.closeAllDescriptors();
+			UserKernel.processes.remove(childProcess);
+			return -1;
 		}
-		
-		//lock?
-		int childExitStatus = childrenExitStatus.get(processID);
 
-		byte[] childExitStatusBytes = Lib.bytesFromInt(childExitStatus);
-		int bytesWritten = writeVirtualMemory(status_addr, childExitStatusBytes);
+		int[] registers = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			registers[i] = processor.readRegister(i);
+		registers[Processor.regV0] = 0;
+		registers[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+		childProcess.forkRegisters = registers;
+
+		UserKernel.processes.setParent(childProcess, this);
+
+		childProcess.thread = new UThread(childProcess);
+		childProcess.thread.setName(executableName).fork();
 
-		return 1;
+		return childProcess.PID;
 	}
 
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallFork = 13, syscallReadv = 15,
+			syscallWritev = 16, syscallMkdir = 17, syscallChdir = 18,
+			syscallDup = 19, syscallDup2 = 20, syscallWaitpid = 21;
+
+	/** The waitpid() option to return at once if no child has exited. */
+	private static final int waitNoHang = 1;
+
+	/**
+	 * Return the syscall table of this process's class, building it the first
+	 * time a process of the class is created.
+	 */
+	private SyscallTable findSyscallTable() {
+		SyscallTable table = syscallTables.get(getClass());
+		if (table == null) {
+			table = new SyscallTable(getClass().getName());
+			registerSyscalls(table);
+			syscallTables.put(getClass(), table);
+		}
+		return table;
+	}
+
+	/**
+	 * Print the syscall statistics of every process class that has run.
+	 */
+	public static void printSyscallTables() {
+		for (SyscallTable table : syscallTables.values())
+			table.print();
+	}
+
+	/**
+	 * Register the syscalls of this class. Called once per class, to fill the
+	 * table shared by all of its processes, so the handlers registered here
+	 * are only ever given processes of this class or a subclass. A subclass
+	 * that adds syscalls overrides this and calls
+	 * <tt>super.registerSyscalls()</tt> first.
+	 * 
+	 * @param syscallTable the table to fill.
+	 */
+	protected void registerSyscalls(SyscallTable syscallTable) {
+		syscallTable.register(syscallHalt, "halt", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleHalt();
+			}
+		});
+		syscallTable.register(syscallExit, "exit", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleExit(a0);
+			}
+		});
+		syscallTable.register(syscallExec, "exec", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleExec(a0, a1, a2);
+			}
+		});
+		syscallTable.register(syscallJoin, "join", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleJoin(a0, a1);
+			}
+		});
+		syscallTable.register(syscallCreate, "creat", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleCreate(a0);
+			}
+		});
+		syscallTable.register(syscallOpen, "open", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleOpen(a0);
+			}
+		});
+		syscallTable.register(syscallRead, "read", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleRead(a0, a1, a2);
+			}
+		});
+		syscallTable.register(syscallWrite, "write", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleWrite(a0, a1, a2);
+			}
+		});
+		syscallTable.register(syscallClose, "close", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleClose(a0);
+			}
+		});
+		syscallTable.register(syscallUnlink, "unlink", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleUnlink(a0);
+			}
+		});
+		syscallTable.register(syscallFork, "fork", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleFork();
+			}
+		});
+		syscallTable.register(syscallReadv, "readv", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleReadv(a0, a1, a2);
+			}
+		});
+		syscallTable.register(syscallWritev, "writev", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleWritev(a0, a1, a2);
+			}
+		});
+		syscallTable.register(syscallMkdir, "mkdir", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleMkdir(a0);
+			}
+		});
+		syscallTable.register(syscallChdir, "chdir", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleChdir(a0);
+			}
+		});
+		syscallTable.register(syscallDup, "dup", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleDup(a0);
+			}
+		});
+		syscallTable.register(syscallDup2, "dup2", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleDup2(a0, a1);
+			}
+		});
+		syscallTable.register(syscallWaitpid, "waitpid", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return process.handleWaitpid(a0, a1, a2);
+			}
+		});
+	}
+
+	/** The syscall table of each process class. */
+	private static HashMap<Class<?>, SyscallTable> syscallTables =
+			new HashMap<Class<?>, SyscallTable>();
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -873,8 +1684,47 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>int  mkdir(char *path);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  chdir(char *path);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>19</td>
+	 * <td><tt>int  dup(int fd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>20</td>
+	 * <td><tt>int  dup2(int fd, int newfd);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>21</td>
+	 * <td><tt>int  waitpid(int pid, int *status, int options);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
+	 * <p>
+	 * Syscalls are looked up in the table of this process's class, which
+	 * subclasses add their own syscalls to through
+	 * <tt>registerSyscalls()</tt>; an unknown syscall returns -1.
+	 * 
 	 * @param syscall the syscall number.
 	 * @param a0 the first syscall argument.
 	 * @param a1 the second syscall argument.
@@ -883,33 +1733,7 @@ public class UserProcess {
 	 * @return the value to be returned to the user.
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
-		switch (syscall) {
-		case syscallHalt:
-			return handleHalt();
-		case syscallExit:
-			return handleExit(a0);
-		case syscallCreate:
-			return handleCreate(a0);
-		case syscallOpen:
-			return handleOpen(a0);
-		case syscallRead:
-			return handleRead(a0, a1, a2);
-		case syscallWrite:
-			return handleWrite(a0, a1, a2);
-		case syscallClose:
-			return handleClose(a0);
-		case syscallUnlink:
-			return handleUnlink(a0);
-		case syscallExec:
-			return handleExec(a0, a1, a2);
-		case syscallJoin:
-			return handleJoin(a0, a1);
-
-		default:
-			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-			Lib.assertNotReached("Unknown system call!");
-		}
-		return 0;
+		return syscallTable.dispatch(this, syscall, a0, a1, a2, a3);
 	}
 
 	/**
@@ -933,33 +1757,41 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
+		case Processor.exceptionPageFault:
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			// a fault outside the address space, or with no frame free,
+			// kills the process
+			if (!faultInPage(vpn))
+				killProcess(cause);
+			break;
+
 		default:
-			Lib.debug(dbgProcess, "Unexpected exception: "
-					+ Processor.exceptionNames[cause]);
-					
-			
-			// Lib.assertNotReached("Unexpected exception");
+			killProcess(cause);
+		}
+	}
 
-			unloadSections();
+	/**
+	 * Terminate this process after an exception it cannot recover from.
+	 * 
+	 * @param cause the exception that occurred.
+	 */
+	private void killProcess(int cause) {
+		Lib.debug(dbgProcess, "Unexpected exception: "
+				+ Processor.exceptionNames[cause]);
 
-			for (int i = 0; i < 16; i++) {
-				if (fileTable[i] == null) continue;
-				fileTable[i].close();
-				fileTable[i] = null;
-			}
-			fileTable = null;
+		// Lib.assertNotReached("Unexpected exception");
 
-			for (Map.Entry<Integer,UserProcess> e : children.entrySet()) {
-				e.getValue().parentProcess = null;
-			}
-			children.clear();
+		unloadSections();
 
-			if(PID == 0){
-				Kernel.kernel.terminate();
-			}
-			else{
-				thread.finish();
-			}
+		closeAllDescriptors();
+
+		UserKernel.processes.exit(this, -1, false);
+
+		if(PID == 0){
+			Kernel.kernel.terminate();
+		}
+		else{
+			thread.finish();
 		}
 	}
 
@@ -969,6 +1801,21 @@ public class UserProcess {
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
+	/** The syscalls of this process's class. */
+	private SyscallTable syscallTable;
+
+	/** Staging buffer for file I/O that cannot go straight to a frame. */
+	private byte[] ioBuffer;
+
+	/** The most buffers a single readv() or writev() may name. */
+	private static final int maxIovecs = 16;
+
+	/** The name of the file containing the executable. */
+	protected String executableName;
+
+	/** Identifies the executable in the shared page cache. */
+	protected String executableKey;
+
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
@@ -982,21 +1829,28 @@ public class UserProcess {
 
 	private int argc, argv;
 
+	/** The registers a child created by fork() starts with. */
+	private int[] forkRegisters;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
 
-	private OpenFile[] fileTable; //fileTable[0] stdin, fileTable[1] stdout
+	private FileHandle[] fileTable; //fileTable[0] stdin, fileTable[1] stdout
 
-	//public int exitStatus;
+	/** Set for each file descriptor in use. */
+	private BitSet usedDescriptors;
 
-	//public int parentPID;
+	/** The descriptor table starts this large and doubles as needed. */
+	private static final int initialFileTableSize = 16;
 
-	public int PID;
+	/** The most files a process may have open at once. */
+	private static final int maxFileDescriptors = 1024;
 
-	private UserProcess parentProcess;
+	//public int exitStatus;
 
-	private HashMap<Integer, UserProcess> children;
+	public int PID;
 
-	private HashMap<Integer,Integer> childrenExitStatus;
+	/** The working directory, as a path from the root with no leading /. */
+	private String workingDirectory = "";
 }
@@ -0,0 +1,167 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A pool of compressed pages in kernel memory, standing in front of the swap
+ * file. A page being swapped out is compressed into the pool instead of being
+ * written to the file, so that faulting it back in costs a decompression
+ * rather than a file system request. When the pool is full, the pages that
+ * have been in it longest are written out to their places in the swap file to
+ * make room; a page that does not compress, or does not fit in the pool at
+ * all, goes straight to the file.
+ *
+ * <p>
+ * Pages are identified by their swap page numbers, which are allocated as
+ * usual whether a page ends up in the pool or in the file. All methods are
+ * called with <tt>VMKernel.fspLock</tt> held.
+ */
+public class CompressedSwap {
+	/**
+	 * Allocate a new compressed page pool.
+	 *
+	 * @param maxBytes the most bytes of compressed pages to hold.
+	 */
+	public CompressedSwap(int maxBytes) {
+		Lib.assertTrue(maxBytes > 0);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Swap out a page, into the pool if it compresses and otherwise into the
+	 * swap file.
+	 *
+	 * @param spn the swap page being written.
+	 * @param memory the array holding the page.
+	 * @param offset the first byte of the page.
+	 */
+	public void store(int spn, byte[] memory, int offset) {
+		ThreadedKernel.chargeTick();
+
+		deflater.reset();
+		deflater.setInput(memory, offset, pageSize);
+		deflater.finish();
+		int length = deflater.deflate(buffer);
+
+		// a page that compresses badly, or that would not fit in the pool
+		// even empty, is not worth holding
+		if (!deflater.finished() || length >= pageSize || length > maxBytes) {
+			VMKernel.swapFile.write(spn * pageSize, memory, offset, pageSize);
+			numUncompressed++;
+			return;
+		}
+
+		while (usedBytes + length > maxBytes)
+			spill();
+
+		byte[] compressed = new byte[length];
+		System.arraycopy(buffer, 0, compressed, 0, length);
+		pages.put(spn, compressed);
+		usedBytes += length;
+		numStored++;
+	}
+
+	/**
+	 * Swap in a page if it is held in the pool. The pool keeps the page, since
+	 * other mappings may still refer to it; <tt>remove()</tt> drops it.
+	 *
+	 * @param spn the swap page being read.
+	 * @param memory the array to hold the page.
+	 * @param offset the first byte of the page.
+	 * @return <tt>true</tt> if the page was in the pool, <tt>false</tt> if it
+	 * must be read from the swap file.
+	 */
+	public boolean load(int spn, byte[] memory, int offset) {
+		byte[] compressed = pages.get(spn);
+		if (compressed == null)
+			return false;
+
+		ThreadedKernel.chargeTick();
+		inflate(compressed, memory, offset);
+		numLoaded++;
+
+		return true;
+	}
+
+	/**
+	 * Drop a swap page that is no longer referred to.
+	 *
+	 * @param spn the swap page being freed.
+	 */
+	public void remove(int spn) {
+		byte[] compressed = pages.remove(spn);
+		if (compressed != null)
+			usedBytes -= compressed.length;
+	}
+
+	/**
+	 * Print the pool's counts, if debugging virtual memory.
+	 */
+	public void print() {
+		Lib.debug(dbgVM, "Compressed swap: stored " + numStored
+				+ ", uncompressible " + numUncompressed + ", loaded "
+				+ numLoaded + ", spilled " + numSpilled + ", bytes held "
+				+ usedBytes);
+	}
+
+	/**
+	 * Write the page held longest out to the swap file.
+	 */
+	private void spill() {
+		Iterator<Map.Entry<Integer, byte[]>> oldest = pages.entrySet().iterator();
+		Map.Entry<Integer, byte[]> entry = oldest.next();
+		oldest.remove();
+
+		byte[] page = new byte[pageSize];
+		inflate(entry.getValue(), page, 0);
+		VMKernel.swapFile.write(entry.getKey() * pageSize, page, 0, pageSize);
+
+		usedBytes -= entry.getValue().length;
+		numSpilled++;
+	}
+
+	private void inflate(byte[] compressed, byte[] memory, int offset) {
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			Lib.assertTrue(inflater.inflate(memory, offset, pageSize) == pageSize);
+		}
+		catch (DataFormatException e) {
+			Lib.assertNotReached("corrupt compressed page");
+		}
+	}
+
+	private int maxBytes;
+
+	private int usedBytes = 0;
+
+	/** The compressed pages by swap page number, oldest first. */
+	private LinkedHashMap<Integer, byte[]> pages = new LinkedHashMap<Integer, byte[]>();
+
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+	private Inflater inflater = new Inflater();
+
+	/** Room for a page that does not compress, and the codec's overhead. */
+	private byte[] buffer = new byte[pageSize + 64];
+
+	private int numStored = 0;
+
+	private int numUncompressed = 0;
+
+	private int numLoaded = 0;
+
+	private int numSpilled = 0;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
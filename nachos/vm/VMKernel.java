@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 
 import nachos.machine.*;
@@ -24,24 +26,77 @@ public class VMKernel extends UserKernel {
 	public void initialize(String[] args) {
 		super.initialize(args);
 
-		swapFile = ThreadedKernel.fileSystem.open("swapFile", true);
+		// a mapped swap file makes each page transfer a copy in memory
+		swapMapped = Config.getBoolean("VMKernel.mapSwap", false);
+		if (swapMapped)
+			swapFile = new MappedFile("swapFile");
+		else
+			swapFile = ThreadedKernel.fileSystem.open("swapFile", true);
+		int compressedSwapSize = Config.getInteger("VMKernel.compressedSwapSize", 0);
+		if (compressedSwapSize > 0)
+			compressedSwap = new CompressedSwap(compressedSwapSize);
 		fspLock = new Lock();
 		freeSwapPages = new LinkedList<>();
-		numSwapPages = 0;
-		ipt = new IPTEntry[Machine.processor().getNumPhysPages()]; //indexed by ppn
+		swapRefCount = new HashMap<Integer, Integer>();
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		// pages 0 through numPhysPages-1 start on the free list below
+		numSwapPages = numPhysPages;
+		// inverted page table, indexed by ppn
+		iptProcess = new VMProcess[numPhysPages];
+		iptEntry = new TranslationEntry[numPhysPages];
+		iptPinCount = new int[numPhysPages];
+		iptCOW = new boolean[numPhysPages];
+		iptFirstSharer = new int[numPhysPages];
+		iptNumSharers = new int[numPhysPages];
+		sharerEntry = new TranslationEntry[numPhysPages];
+		sharerNext = new int[numPhysPages];
+		freeSharer = 0;
+		iptState = new int[numPhysPages];
+		iptCV = new Condition[numPhysPages];
+		iptLastUsed = new long[numPhysPages];
+
+		residentLimit = Config.getInteger("VMKernel.residentLimit", 0);
+		workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 100000);
+
+		thrashingThreshold = Config.getInteger("VMKernel.thrashingThreshold", 0);
+		loadControlWindow = Config.getInteger("VMKernel.loadControlWindow", 100000);
+		processes = new LinkedList<VMProcess>();
+		suspendedProcesses = new LinkedList<VMProcess>();
+
+		shareZeroPages = Config.getBoolean("VMKernel.shareZeroPages", false);
+		mergeInterval = Config.getInteger("VMKernel.mergeInterval", 0);
+
+		superpageSize = Config.getInteger("VMKernel.superpageSize", 1);
+		Lib.assertTrue(superpageSize > 0
+				&& (superpageSize & (superpageSize - 1)) == 0);
 
 		iptLock = new Lock();
 		oldestPPN = 0;
-		numPagesPinned = 0;
-		pinLock = new Lock();
-		pinCV = new Condition(pinLock);
+		pinCV = new Condition(iptLock);
 
 		fspLock.acquire();
 		for(int i = 0; i < Machine.processor().getNumPhysPages(); i++){
 			freeSwapPages.add(i);
-			ipt[i] = new IPTEntry(null, null, false);
+			iptFirstSharer[i] = -1;
+			sharerNext[i] = i + 1 < numPhysPages ? i + 1 : -1;
+			iptState[i] = frameFree;
+			iptCV[i] = new Condition(iptLock);
 		}
 		fspLock.release();
+
+		if (mergeInterval > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					while (true) {
+						ThreadedKernel.alarm.waitUntil(mergeInterval);
+
+						iptLock.acquire();
+						mergePages();
+						iptLock.release();
+					}
+				}
+			}).setName("page merger").fork();
+		}
 	}
 
 	/**
@@ -61,8 +116,10 @@ public class VMKernel extends UserKernel {
 	public static int chooseEvictPPN() {
 		int ppn;
 
-		while(ipt[oldestPPN].entry.used || ipt[oldestPPN].isPinned){
-			ipt[oldestPPN].entry.used = false;
+		while(iptState[oldestPPN] != frameResident || iptPinCount[oldestPPN] > 0
+				|| isUsed(oldestPPN)){
+			if (iptState[oldestPPN] == frameResident)
+				clearUsed(oldestPPN);
 			oldestPPN++;
 			oldestPPN = oldestPPN % Machine.processor().getNumPhysPages();
 		}
@@ -70,40 +127,617 @@ public class VMKernel extends UserKernel {
 		oldestPPN++;
 		oldestPPN = oldestPPN % Machine.processor().getNumPhysPages();
 
+		return evictFrame(ppn);
+	}
+
+	/**
+	 * Choose one of a process's own private frames to replace, for a process
+	 * that is at its resident limit, so that it pages against itself rather
+	 * than against other processes. The process's clock hand sweeps only its
+	 * own frames, at most twice round. Called with <tt>iptLock</tt> held.
+	 * 
+	 * @param process the process needing a frame.
+	 * @return the frame, emptied, or -1 if none of the process's frames can
+	 * be replaced now.
+	 */
+	public static int chooseLocalEvictPPN(VMProcess process) {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		for (int i = 0; i < 2 * numPhysPages; i++) {
+			int ppn = process.clockHand;
+			process.clockHand = (process.clockHand + 1) % numPhysPages;
+
+			if (iptProcess[ppn] != process || iptState[ppn] != frameResident
+					|| iptPinCount[ppn] > 0 || UserKernel.isSharedPage(ppn))
+				continue;
+
+			if (isUsed(ppn)) {
+				clearUsed(ppn);
+				continue;
+			}
+
+			return evictFrame(ppn);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Invalidate every mapping of a resident frame, writing its page out
+	 * first if it must be kept, and leave the frame empty and unowned.
+	 * Called with <tt>iptLock</tt> held.
+	 */
+	private static int evictFrame(int ppn) {
+		if (UserKernel.isSharedPage(ppn)) {
+			// copy-on-write pages go to one swap page shared by every mapping;
+			// shared text and pages still zero are clean, so their mappings
+			// just forget the frame
+			boolean clean = !iptCOW[ppn];
+			if (zeroPageKey.equals(UserKernel.getSharedPageKey(ppn))) {
+				clean = true;
+				for (int s = iptFirstSharer[ppn]; s != -1; s = sharerNext[s])
+					clean = clean && !sharerEntry[s].dirty;
+			}
+
+			int spn = -1;
+			if (!clean) {
+				spn = VMProcess.swapOut(-1, ppn);
+				if (getNumSharers(ppn) > 1) {
+					fspLock.acquire();
+					swapRefCount.put(spn, getNumSharers(ppn));
+					fspLock.release();
+				}
+			}
+
+			for (int s = iptFirstSharer[ppn]; s != -1; s = sharerNext[s]) {
+				TranslationEntry sharer = sharerEntry[s];
+				sharer.valid = false;
+				sharer.ppn = spn;
+				if (!clean) {
+					sharer.dirty = true;
+					sharer.readOnly = false;
+				}
+			}
+			clearSharers(ppn);
+			iptCOW[ppn] = false;
+			iptEntry[ppn] = null;
+			UserKernel.evictSharedPage(ppn);
+			setFrameOwner(ppn, null);
+			Lib.debug(dbgVM, "shared ppn: " + ppn);
+			return ppn;
+		}
+
 		//evict
-		int toEvictVPN = ipt[ppn].entry.vpn;
-		VMProcess process = ipt[ppn].process;
+		int toEvictVPN = iptEntry[ppn].vpn;
+		VMProcess process = iptProcess[ppn];
 
-		ipt[ppn].entry.valid = false;
-		ipt[ppn].entry = null; // the new one will replace this
+		iptEntry[ppn].valid = false;
+		iptEntry[ppn] = null; // the new one will replace this
 		Lib.debug(dbgVM, "ppn: " + ppn);
 		process.evict(toEvictVPN, ppn);
+		setFrameOwner(ppn, null);
 
 		// ppn is now empty and ready to be used
 		return ppn;
 	}
 
+	/**
+	 * Test whether a frame could be replaced without waiting, that is whether
+	 * some frame is resident and not pinned. Called with <tt>iptLock</tt>
+	 * held.
+	 */
+	public static boolean canAllocateFrame() {
+		if (UserKernel.frames.getNumFree() > 0)
+			return true;
+
+		for (int ppn = 0; ppn < iptState.length; ppn++) {
+			if (iptState[ppn] == frameResident && iptPinCount[ppn] == 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drop one mapping's hold on a frame, and return the frame to the free
+	 * list once nothing maps it. Called with <tt>iptLock</tt> held.
+	 */
+	public static void releaseFrame(int ppn) {
+		if (UserKernel.releaseSharedPage(ppn)) {
+			if (UserKernel.isSharedPage(ppn))
+				return;
+		}
+		else {
+			UserKernel.freePage(ppn);
+		}
+
+		setFrameOwner(ppn, null);
+		iptEntry[ppn] = null;
+		iptState[ppn] = frameFree;
+		pinCV.wakeAll();
+	}
+
+	/**
+	 * Test whether any page table entry mapping a frame has been referenced.
+	 */
+	private static boolean isUsed(int ppn) {
+		if (!UserKernel.isSharedPage(ppn))
+			return iptEntry[ppn].used;
+
+		for (int s = iptFirstSharer[ppn]; s != -1; s = sharerNext[s]) {
+			if (sharerEntry[s].used)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Clear the used bit of every page table entry mapping a frame.
+	 */
+	private static void clearUsed(int ppn) {
+		if (isUsed(ppn))
+			iptLastUsed[ppn] = Machine.timer().getTime();
+
+		if (!UserKernel.isSharedPage(ppn)) {
+			iptEntry[ppn].used = false;
+			return;
+		}
+
+		for (int s = iptFirstSharer[ppn]; s != -1; s = sharerNext[s])
+			sharerEntry[s].used = false;
+	}
+
+	/**
+	 * Add a page table entry to those mapping a shared frame. Called with
+	 * <tt>iptLock</tt> held.
+	 * 
+	 * @param ppn the frame.
+	 * @param entry the entry now mapping it.
+	 */
+	public static void addSharer(int ppn, TranslationEntry entry) {
+		if (freeSharer == -1) {
+			int size = sharerEntry.length;
+			sharerEntry = Arrays.copyOf(sharerEntry, size * 2);
+			sharerNext = Arrays.copyOf(sharerNext, size * 2);
+			for (int s = size; s < size * 2; s++)
+				sharerNext[s] = s + 1 < size * 2 ? s + 1 : -1;
+			freeSharer = size;
+		}
+
+		int s = freeSharer;
+		freeSharer = sharerNext[s];
+
+		sharerEntry[s] = entry;
+		sharerNext[s] = iptFirstSharer[ppn];
+		iptFirstSharer[ppn] = s;
+		iptNumSharers[ppn]++;
+	}
+
+	/**
+	 * Remove a page table entry from those mapping a shared frame, if it is
+	 * one of them. Called with <tt>iptLock</tt> held.
+	 * 
+	 * @param ppn the frame.
+	 * @param entry the entry no longer mapping it.
+	 */
+	public static void removeSharer(int ppn, TranslationEntry entry) {
+		int previous = -1;
+		for (int s = iptFirstSharer[ppn]; s != -1; previous = s, s = sharerNext[s]) {
+			if (sharerEntry[s] != entry)
+				continue;
+
+			if (previous == -1)
+				iptFirstSharer[ppn] = sharerNext[s];
+			else
+				sharerNext[previous] = sharerNext[s];
+			freeSharerNode(s);
+			iptNumSharers[ppn]--;
+			return;
+		}
+	}
+
+	/**
+	 * Return one of the page table entries mapping a shared frame.
+	 * 
+	 * @param ppn the frame.
+	 * @return an entry mapping it, or <tt>null</tt> if it has no sharers.
+	 */
+	public static TranslationEntry getFirstSharer(int ppn) {
+		int s = iptFirstSharer[ppn];
+		return s == -1 ? null : sharerEntry[s];
+	}
+
+	/**
+	 * Return the number of page table entries mapping a shared frame.
+	 * 
+	 * @param ppn the frame.
+	 * @return the number of sharers.
+	 */
+	public static int getNumSharers(int ppn) {
+		return iptNumSharers[ppn];
+	}
+
+	/**
+	 * Forget every page table entry mapping a shared frame. Called with
+	 * <tt>iptLock</tt> held.
+	 * 
+	 * @param ppn the frame.
+	 */
+	public static void clearSharers(int ppn) {
+		while (iptFirstSharer[ppn] != -1) {
+			int s = iptFirstSharer[ppn];
+			iptFirstSharer[ppn] = sharerNext[s];
+			freeSharerNode(s);
+		}
+		iptNumSharers[ppn] = 0;
+	}
+
+	private static void freeSharerNode(int s) {
+		sharerEntry[s] = null;
+		sharerNext[s] = freeSharer;
+		freeSharer = s;
+	}
+
+	/**
+	 * Charge a frame to the process that now holds it, taking it off the
+	 * resident count of the process that held it before. Called with
+	 * <tt>iptLock</tt> held.
+	 * 
+	 * @param ppn the frame.
+	 * @param process the new owner, or <tt>null</tt> if the frame is being
+	 * emptied.
+	 */
+	public static void setFrameOwner(int ppn, VMProcess process) {
+		if (iptProcess[ppn] != null)
+			iptProcess[ppn].residentPages--;
+
+		iptProcess[ppn] = process;
+
+		if (process != null) {
+			process.residentPages++;
+			process.peakResidentPages = Math.max(process.peakResidentPages,
+					process.residentPages);
+			iptLastUsed[ppn] = Machine.timer().getTime();
+		}
+	}
+
+	/**
+	 * Estimate the working set of a process: the frames it holds that it has
+	 * used within the last <tt>workingSetWindow</tt> ticks. A frame's use is
+	 * seen through its used bit, and dated when the clock hand clears the
+	 * bit. Called with <tt>iptLock</tt> held.
+	 * 
+	 * @param process the process.
+	 * @return the estimated working set size, in pages.
+	 */
+	public static int getWorkingSetSize(VMProcess process) {
+		long now = Machine.timer().getTime();
+		int size = 0;
+
+		for (int ppn = 0; ppn < iptProcess.length; ppn++) {
+			if (iptProcess[ppn] != process || iptState[ppn] != frameResident)
+				continue;
+
+			if (isUsed(ppn) || now - iptLastUsed[ppn] < workingSetWindow)
+				size++;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Return the most frames a process running an executable may hold before
+	 * it replaces its own pages rather than other processes'. A limit for a
+	 * single program is set with <tt>VMKernel.residentLimit.</tt><i>name</i>,
+	 * overriding <tt>VMKernel.residentLimit</tt>.
+	 * 
+	 * @param executableName the name of the executable.
+	 * @return the limit in frames, or 0 if there is none.
+	 */
+	public static int getResidentLimit(String executableName) {
+		return Config.getInteger("VMKernel.residentLimit." + executableName,
+				residentLimit);
+	}
+
+	/**
+	 * Return the process whose page table holds an entry, to charge a shared
+	 * frame to when the process it was charged to stops mapping it. Called
+	 * with <tt>iptLock</tt> held.
+	 * 
+	 * @param entry a page table entry, or <tt>null</tt>.
+	 * @return the process, or <tt>null</tt> if no running process maps
+	 * <i>entry</i>.
+	 */
+	public static VMProcess getMapper(TranslationEntry entry) {
+		if (entry == null)
+			return null;
+
+		for (VMProcess process : processes) {
+			if (process.maps(entry))
+				return process;
+		}
+		return null;
+	}
+
+	/**
+	 * Add a process to those the load controller watches. Called with
+	 * <tt>iptLock</tt> held.
+	 * 
+	 * @param process the process, whose address space has just been set up.
+	 */
+	public static void addProcess(VMProcess process) {
+		processes.add(process);
+	}
+
+	/**
+	 * Remove an exiting process from those the load controller watches. The
+	 * frames it frees may be enough for a suspended process to resume.
+	 * Called with <tt>iptLock</tt> held.
+	 * 
+	 * @param process the exiting process.
+	 */
+	public static void removeProcess(VMProcess process) {
+		processes.remove(process);
+		suspendedProcesses.remove(process);
+
+		resumeProcess();
+	}
+
+	/**
+	 * Count a page fault for load control. Over each
+	 * <tt>VMKernel.loadControlWindow</tt> ticks the global fault rate is
+	 * compared to <tt>VMKernel.thrashingThreshold</tt>, in faults per
+	 * window: above it, a process is suspended and its frames given
+	 * to the others; below half of it, a suspended process is resumed. Called
+	 * with <tt>iptLock</tt> held.
+	 * 
+	 * @param process the faulting process.
+	 */
+	public static void noteFault(VMProcess process) {
+		if (thrashingThreshold <= 0)
+			return;
+
+		process.windowFaults++;
+		windowFaults++;
+
+		long now = Machine.timer().getTime();
+		if (now - windowStart < loadControlWindow)
+			return;
+
+		long rate = (long) windowFaults * loadControlWindow / (now - windowStart);
+		Lib.debug(dbgVM, "fault rate " + rate + " per window");
+
+		if (rate > thrashingThreshold)
+			suspendProcess();
+		else if (rate < thrashingThreshold / 2)
+			resumeProcess();
+
+		windowStart = now;
+		windowFaults = 0;
+		for (VMProcess p : processes)
+			p.windowFaults = 0;
+	}
+
+	/**
+	 * Make a suspended process wait until the load controller resumes it.
+	 * The process checks once a window, and resumes itself after
+	 * <tt>maxSuspendWindows</tt> windows, so that it cannot wait forever on
+	 * processes that are themselves waiting for it. Called with
+	 * <tt>iptLock</tt> held, by the process's own thread.
+	 * 
+	 * @param process the current process.
+	 */
+	public static void waitWhileSuspended(VMProcess process) {
+		while (process.suspended) {
+			iptLock.release();
+			ThreadedKernel.alarm.waitUntil(loadControlWindow);
+			iptLock.acquire();
+
+			if (process.suspended && Machine.timer().getTime()
+					- process.suspendTime >= maxSuspendWindows * loadControlWindow) {
+				suspendedProcesses.remove(process);
+				process.suspended = false;
+			}
+		}
+	}
+
+	/**
+	 * Suspend the process least deserving of memory, and take away every
+	 * frame of its that can be replaced. That is the lowest-priority process,
+	 * and of those the one faulting most. At least one process is always left
+	 * running. Called with <tt>iptLock</tt> held.
+	 */
+	private static void suspendProcess() {
+		VMProcess victim = null;
+		int numRunning = 0;
+		int victimPriority = 0;
+
+		for (VMProcess p : processes) {
+			if (p.suspended)
+				continue;
+			numRunning++;
+
+			int priority = p.getPriority();
+			if (victim == null || priority < victimPriority
+					|| (priority == victimPriority && p.windowFaults > victim.windowFaults)) {
+				victim = p;
+				victimPriority = priority;
+			}
+		}
+
+		if (numRunning < 2)
+			return;
+
+		Lib.debug(dbgVM, "suspending process " + victim.PID);
+
+		victim.suspended = true;
+		victim.suspendTime = Machine.timer().getTime();
+		suspendedProcesses.add(victim);
+
+		for (int ppn = 0; ppn < iptProcess.length; ppn++) {
+			if (iptProcess[ppn] != victim || iptState[ppn] != frameResident
+					|| iptPinCount[ppn] > 0 || UserKernel.isSharedPage(ppn))
+				continue;
+
+			evictFrame(ppn);
+			iptState[ppn] = frameFree;
+			UserKernel.freePage(ppn);
+		}
+		pinCV.wakeAll();
+	}
+
+	/**
+	 * Resume the process suspended longest, if any. It faults its pages back
+	 * in as it runs. Called with <tt>iptLock</tt> held.
+	 */
+	private static void resumeProcess() {
+		if (suspendedProcesses.isEmpty())
+			return;
+
+		VMProcess process = suspendedProcesses.removeFirst();
+		process.suspended = false;
+
+		Lib.debug(dbgVM, "resuming process " + process.PID);
+	}
+
+	/**
+	 * Merge frames holding identical pages, KSM-style. Every resident,
+	 * unpinned private frame of a writable page, and every copy-on-write
+	 * frame, is hashed; a private frame with the same contents as one seen
+	 * earlier in the scan is freed and its page mapped copy-on-write to the
+	 * other frame, so that it gets a frame of its own again only when
+	 * written. Called with <tt>iptLock</tt> held.
+	 *
+	 * <p>
+	 * Both frames are write-protected before they are read, and stay so until
+	 * the merge is done or abandoned. A write to either in between faults and
+	 * waits for <tt>iptLock</tt>, so it lands in the frame the page ends up
+	 * in rather than in the one being freed.
+	 */
+	private static void mergePages() {
+		byte[] memory = Machine.processor().getMemory();
+		HashMap<Integer, Integer> framesByHash = new HashMap<Integer, Integer>();
+		int numMerged = 0;
+
+		for (int ppn = 0; ppn < iptProcess.length; ppn++) {
+			if (!isMergeable(ppn))
+				continue;
+
+			boolean protectedPPN = writeProtect(ppn);
+
+			int hash = 1;
+			for (int i = ppn * pageSize; i < (ppn + 1) * pageSize; i++)
+				hash = 31 * hash + memory[i];
+
+			Integer other = framesByHash.get(hash);
+			if (other == null) {
+				framesByHash.put(hash, ppn);
+				restoreProtection(ppn, protectedPPN);
+				continue;
+			}
+
+			// the frame freed must be private; keep the shared one
+			int keep = other, drop = ppn;
+			if (UserKernel.isSharedPage(drop)) {
+				keep = ppn;
+				drop = other;
+				framesByHash.put(hash, ppn);
+			}
+			if (UserKernel.isSharedPage(drop) || !isMergeable(other)) {
+				restoreProtection(ppn, protectedPPN);
+				continue;
+			}
+
+			boolean protectedOther = writeProtect(other);
+
+			if (!Arrays.equals(memory, keep * pageSize, (keep + 1) * pageSize,
+					memory, drop * pageSize, (drop + 1) * pageSize)) {
+				restoreProtection(ppn, protectedPPN);
+				restoreProtection(other, protectedOther);
+				continue;
+			}
+
+			mergeFrame(keep, drop);
+			numMerged++;
+		}
+
+		if (numMerged > 0) {
+			Lib.debug(dbgVM, "merged " + numMerged + " pages");
+			pinCV.wakeAll();
+		}
+	}
+
+	/**
+	 * Test whether a frame may take part in a merge: it is resident and
+	 * unpinned, and holds either a copy-on-write page or a private writable
+	 * page of a program's address space.
+	 */
+	private static boolean isMergeable(int ppn) {
+		if (iptState[ppn] != frameResident || iptPinCount[ppn] > 0)
+			return false;
+
+		if (UserKernel.isSharedPage(ppn))
+			return iptCOW[ppn];
+
+		return iptEntry[ppn] != null && !iptEntry[ppn].readOnly
+				&& iptProcess[ppn].isMergeable(iptEntry[ppn].vpn);
+	}
+
+	/**
+	 * Make the page in a mergeable frame read-only, if it is a private page.
+	 *
+	 * @return <tt>true</tt> if the page was writable and has been protected.
+	 */
+	private static boolean writeProtect(int ppn) {
+		if (UserKernel.isSharedPage(ppn))
+			return false;
+
+		iptEntry[ppn].readOnly = true;
+		return true;
+	}
+
+	/**
+	 * Undo <tt>writeProtect()</tt> on a frame that was not merged.
+	 */
+	private static void restoreProtection(int ppn, boolean wasProtected) {
+		if (wasProtected)
+			iptEntry[ppn].readOnly = false;
+	}
+
+	/**
+	 * Map the page held in the private frame <i>drop</i> to the frame
+	 * <i>keep</i>, which holds the same contents, copy-on-write, and free
+	 * <i>drop</i>. Both pages have already been write-protected.
+	 */
+	private static void mergeFrame(int keep, int drop) {
+		if (!UserKernel.isSharedPage(keep))
+			addSharer(keep, iptEntry[keep]);
+		UserKernel.addFrameReference(keep);
+		iptCOW[keep] = true;
+
+		TranslationEntry entry = iptEntry[drop];
+		entry.ppn = keep;
+		addSharer(keep, entry);
+
+		setFrameOwner(drop, null);
+		iptEntry[drop] = null;
+		iptState[drop] = frameFree;
+		UserKernel.freePage(drop);
+	}
+
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (compressedSwap != null)
+			compressedSwap.print();
+
 		swapFile.close();
-        ThreadedKernel.fileSystem.remove("swapFile");
+		if (!swapMapped)
+			ThreadedKernel.fileSystem.remove("swapFile");
 
 		super.terminate();
 	}
 
-	public static class IPTEntry {
-		VMProcess process;
-		TranslationEntry entry;
-		boolean isPinned;
-		public IPTEntry(VMProcess process, TranslationEntry entry, boolean isPinned) {
-			this.process = process;
-			this.entry = entry;
-			this.isPinned = isPinned;
-		}
-	}
-
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
@@ -111,21 +745,119 @@ public class VMKernel extends UserKernel {
 
 	public static OpenFile swapFile;
 
+	/** Whether the swap file is an anonymous mapping rather than a file. */
+	private static boolean swapMapped;
+
+	/** Compressed pages kept in memory ahead of the swap file, or
+	 * <tt>null</tt> if every swapped page goes to the file. */
+	public static CompressedSwap compressedSwap;
+
 	public static LinkedList<Integer> freeSwapPages;
 
 	public static int numSwapPages;
 
+	/** The number of page table entries referring to each swap page that
+	 * holds a copy-on-write page, for swap pages with more than one. */
+	public static HashMap<Integer, Integer> swapRefCount;
+
 	public static Lock fspLock;
 
-	public static IPTEntry[] ipt;
+	/*
+	 * The inverted page table, kept as one array per field rather than one
+	 * object per frame so that a scan by the clock hand touches only the
+	 * fields it tests.
+	 */
+
+	/** The process owning each frame. */
+	public static VMProcess[] iptProcess;
+
+	/** The page table entry mapping each frame. */
+	public static TranslationEntry[] iptEntry;
+
+	/** The number of pins held on each frame; a pinned frame must not be
+	 * chosen for replacement. */
+	public static int[] iptPinCount;
+
+	/** True if writing a shared frame should make a private copy. */
+	public static boolean[] iptCOW;
+
+	/** The first node of the list of page table entries mapping each frame,
+	 * if it is shared, or -1. */
+	private static int[] iptFirstSharer;
+
+	/** The number of page table entries mapping each shared frame. */
+	private static int[] iptNumSharers;
+
+	/** The nodes of every frame's sharer list, in a pool of parallel arrays:
+	 * the entry each node holds and the node after it, or -1. Unused nodes
+	 * are chained from <tt>freeSharer</tt>. */
+	private static TranslationEntry[] sharerEntry;
+
+	private static int[] sharerNext;
+
+	private static int freeSharer;
+
+	/** Whether each frame is free, being loaded, or holds a resident page.
+	 * Only resident frames are candidates for replacement. */
+	public static int[] iptState;
+
+	/** Signaled when a frame finishes loading, for faults on the same page.
+	 * Each condition uses <tt>iptLock</tt>. */
+	public static Condition[] iptCV;
+
+	public static final int frameFree = 0, frameLoading = 1, frameResident = 2;
+
+	/** The time each frame was last seen used, or was loaded. */
+	public static long[] iptLastUsed;
+
+	/** The default resident limit of a process, in frames; 0 for none. */
+	private static int residentLimit;
+
+	/** The ticks within which a page must have been used to count as part
+	 * of its process's working set. */
+	private static int workingSetWindow;
+
+	/** The fault rate, in faults per window, above which processes are
+	 * suspended; 0 to turn load control off. */
+	private static int thrashingThreshold;
+
+	/** The ticks over which the fault rate is measured. */
+	private static int loadControlWindow;
+
+	/** The most windows a process stays suspended. */
+	private static final int maxSuspendWindows = 8;
+
+	private static long windowStart = 0;
+
+	private static int windowFaults = 0;
+
+	/** Every process with an address space. */
+	private static LinkedList<VMProcess> processes;
+
+	/** The suspended processes, longest suspended first. */
+	private static LinkedList<VMProcess> suspendedProcesses;
+
+	/** Whether pages that start out zero-filled share one frame until they
+	 * are written. */
+	public static boolean shareZeroPages;
+
+	/** The shared page cache key of the zero frame. */
+	public static final String zeroPageKey = "zero page";
+
+	/** The ticks between page-merging scans; 0 for no scans. */
+	private static int mergeInterval;
+
+	private static final int pageSize = Processor.pageSize;
 
 	public static Lock iptLock;
 
 	public static int oldestPPN;
 
-	public static Lock pinLock;
-
+	/** Signaled, under <tt>iptLock</tt>, when a frame may have become
+	 * replaceable: it was unpinned, finished loading, or was freed. */
 	public static Condition pinCV;
 
-	public static int numPagesPinned;
+	/** The number of pages, a power of two, in the aligned runs that the
+	 * fault path promotes to resident together. 1 disables promotion. */
+	public static int superpageSize;
 }
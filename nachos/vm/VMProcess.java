@@ -1,6 +1,7 @@
 package nachos.vm;
 
 import java.util.Arrays;
+import java.util.LinkedList;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -44,8 +45,14 @@ public class VMProcess extends UserProcess {
 
 		Lib.debug(dbgProcess, "VMprocess");
 
+		residentLimit = VMKernel.getResidentLimit(executableName);
+
 		pageTable = new TranslationEntry[numPages];
 
+		VMKernel.iptLock.acquire();
+		VMKernel.addProcess(this);
+		VMKernel.iptLock.release();
+
 		for (int i = 0; i < numPages; i++) {
 			pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
 		}
@@ -58,10 +65,44 @@ public class VMProcess extends UserProcess {
 	 */
 	protected void unloadSections() {
 
+		while (!memoryMaps.isEmpty()) {
+			unmap(memoryMaps.getFirst());
+		}
+
+		VMKernel.iptLock.acquire();
+		Lib.debug(dbgVM, "process " + PID + ": resident " + residentPages
+				+ ", peak " + peakResidentPages + ", working set "
+				+ VMKernel.getWorkingSetSize(this));
+		VMKernel.removeProcess(this);
+
 		for (int i = 0; i < pageTable.length; i++) {
-			if (!pageTable[i].valid) continue;
-			UserKernel.freePage(pageTable[i].ppn);
+			if (pageTable[i] == null) continue;
+
+			if (!pageTable[i].valid) {
+				if (pageTable[i].dirty) {
+					VMKernel.fspLock.acquire();
+					releaseSwapPage(pageTable[i].ppn);
+					VMKernel.fspLock.release();
+				}
+				continue;
+			}
+
+			int ppn = pageTable[i].ppn;
+			if (UserKernel.isSharedPage(ppn)) {
+				VMKernel.removeSharer(ppn, pageTable[i]);
+				if (VMKernel.iptEntry[ppn] == pageTable[i]) {
+					VMKernel.iptEntry[ppn] = VMKernel.getFirstSharer(ppn);
+				}
+				if (VMKernel.iptProcess[ppn] == this) {
+					VMKernel.setFrameOwner(ppn, VMKernel.getMapper(VMKernel.iptEntry[ppn]));
+				}
+				if (VMKernel.getNumSharers(ppn) == 0) {
+					VMKernel.iptCOW[ppn] = false;
+				}
+			}
+			VMKernel.releaseFrame(ppn);
 		}
+		VMKernel.iptLock.release();
 
 		coff.close();
 
@@ -72,70 +113,18 @@ public class VMProcess extends UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
-		if (data == null || vaddr < 0 || vaddr >= numPages * pageSize){return -1;}
+		if (data == null || vaddr < 0 || vaddr >= pageTable.length * pageSize){return -1;}
 
 		int amount = 0;
 
-		int vpn = Processor.pageFromAddress(vaddr);
+		while (amount < length) {
+			int pinned = pinRange(vaddr + amount, length - amount, false);
+			if (pinned == 0) break;
 
-		if (!pageTable[vpn].valid) {
-			int faultVaddr = Processor.makeAddress(vpn, 0);
-			handlePageFault(faultVaddr);
-		}
-			
-		int offset_from_vaddr = Processor.offsetFromAddress(vaddr);
-		int ppn = pageTable[vpn].ppn;
-		int paddr = pageSize * ppn + offset_from_vaddr;
-		int bytesRemaining = length;
-
-		while(bytesRemaining > 0){
-
-			VMKernel.pinLock.acquire();
-			VMKernel.ipt[ppn].isPinned = true;
-			VMKernel.numPagesPinned++;
-			VMKernel.pinLock.release();
-
-			if(paddr < 0 || paddr >= memory.length){
-				VMKernel.pinLock.acquire();
-				VMKernel.ipt[ppn].isPinned = false;
-				VMKernel.numPagesPinned--;
-				VMKernel.pinCV.wake();
-				VMKernel.pinLock.release();
-				break;
-			}
-
-			int maxSingleCopy = pageSize - offset_from_vaddr;
-			int amountToCopy = Math.min(bytesRemaining, maxSingleCopy);
-			
-			System.arraycopy(memory, paddr, data, offset, amountToCopy);
-
-			amount += amountToCopy;
-
-			offset += amountToCopy;
-			pageTable[vpn].used = true;
-			vpn++;
+			copyPinned(vaddr + amount, data, offset + amount, pinned, false);
+			unpinRange(vaddr + amount, pinned);
 
-			VMKernel.pinLock.acquire();
-			VMKernel.ipt[ppn].isPinned = false;
-			VMKernel.numPagesPinned--;
-			VMKernel.pinCV.wake();
-			VMKernel.pinLock.release();
-
-			if(vpn >= pageTable.length) {break;}
-
-
-			if (!pageTable[vpn].valid) {
-				int faultVaddr = Processor.makeAddress(vpn, 0);
-				handlePageFault(faultVaddr);
-			}
-
-			offset_from_vaddr = 0;
-			ppn = pageTable[vpn].ppn;
-			paddr = pageSize * ppn + offset_from_vaddr;
-			bytesRemaining -= amountToCopy;
-			
+			amount += pinned;
 		}
 
 		return amount;
@@ -145,78 +134,111 @@ public class VMProcess extends UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
-		if (data == null || vaddr < 0 || vaddr >= numPages * pageSize){return -1;}
+		if (data == null || vaddr < 0 || vaddr >= pageTable.length * pageSize){return -1;}
 
 		int amount = 0;
 
-		int vpn = Processor.pageFromAddress(vaddr);
+		while (amount < length) {
+			int pinned = pinRange(vaddr + amount, length - amount, true);
+			if (pinned == 0) break;
 
-		if (!pageTable[vpn].valid) {
-			int faultVaddr = Processor.makeAddress(vpn, 0);
-			handlePageFault(faultVaddr);
+			copyPinned(vaddr + amount, data, offset + amount, pinned, true);
+			unpinRange(vaddr + amount, pinned);
+
+			amount += pinned;
 		}
 
-		int offset_from_vaddr = Processor.offsetFromAddress(vaddr);
-		int ppn = pageTable[vpn].ppn;
-		int paddr = pageSize * ppn + offset_from_vaddr;
-		int bytesRemaining = length;
-		while(bytesRemaining > 0){
+		return amount;
+	}
+
+	/**
+	 * Fault in and pin the pages holding a range of virtual memory, so that
+	 * they stay resident until <tt>unpinRange()</tt> is called on the same
+	 * range. Pins nest: a frame can be replaced again only once every pin on
+	 * it has been dropped. When <i>writing</i>, copy-on-write pages in the
+	 * range are made private first.
+	 *
+	 * <p>
+	 * The range may be pinned only in part: it stops at a page that is not
+	 * mapped or, when writing, is read-only. It also stops early rather than
+	 * wait for a frame while already holding pins, so that two processes
+	 * pinning at once cannot each wait for the other's frames.
+	 *
+	 * @param vaddr the first byte of the range.
+	 * @param length the number of bytes in the range.
+	 * @param writing <tt>true</tt> if the range is about to be written.
+	 * @return the number of bytes, starting at <i>vaddr</i>, that are pinned.
+	 */
+	public int pinRange(int vaddr, int length, boolean writing) {
+		if (vaddr < 0 || length <= 0 || vaddr >= pageTable.length * pageSize)
+			return 0;
+
+		length = Math.min(length, pageTable.length * pageSize - vaddr);
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+
+		VMKernel.iptLock.acquire();
 
-			VMKernel.pinLock.acquire();
-			VMKernel.ipt[ppn].isPinned = true;
-			VMKernel.numPagesPinned++;
-			VMKernel.pinLock.release();
+		int vpn;
+		for (vpn = firstVPN; vpn <= lastVPN; vpn++) {
+			boolean mustCopy = isResident(vpn) && writing
+					&& pageTable[vpn].readOnly && VMKernel.iptCOW[pageTable[vpn].ppn];
 
-			if(pageTable[vpn].readOnly || paddr < 0 || paddr >= memory.length){
-				VMKernel.pinLock.acquire();
-				VMKernel.ipt[ppn].isPinned = false;
-				VMKernel.numPagesPinned--;
-				VMKernel.pinCV.wake();
-				VMKernel.pinLock.release();
+			if ((!isResident(vpn) || mustCopy) && vpn > firstVPN
+					&& !VMKernel.canAllocateFrame()) {
 				break;
 			}
 
-			if (!pageTable[vpn].valid) {
-				int faultVaddr = Processor.makeAddress(vpn, 0);
-				handlePageFault(faultVaddr);
+			if (!isResident(vpn)) {
+				loadPage(vpn);
+				if (!isResident(vpn)) break;
 			}
 
-			int maxSingleCopy = pageSize - offset_from_vaddr;
-			int amountToCopy = Math.min(bytesRemaining, maxSingleCopy);
-			
-			System.arraycopy(data, offset, memory, paddr, amountToCopy);
+			if (writing && pageTable[vpn].readOnly && !copyOnWrite(vpn))
+				break;
 
-			amount += amountToCopy;
+			VMKernel.iptPinCount[pageTable[vpn].ppn]++;
+		}
 
-			offset += amountToCopy;
-			pageTable[vpn].used = true;
-			pageTable[vpn].dirty = true;
-			vpn++;
+		VMKernel.iptLock.release();
 
-			VMKernel.pinLock.acquire();
-			VMKernel.ipt[ppn].isPinned = false;
-			VMKernel.numPagesPinned--;
-			VMKernel.pinCV.wake();
-			VMKernel.pinLock.release();
+		if (vpn > lastVPN)
+			return length;
+		return Math.max(Processor.makeAddress(vpn, 0) - vaddr, 0);
+	}
 
-			if(vpn >= pageTable.length) {break;}
-			
-			offset_from_vaddr = 0;
+	/**
+	 * Drop the pins taken by <tt>pinRange()</tt> on a range of virtual memory.
+	 *
+	 * @param vaddr the first byte of the range.
+	 * @param length the number of bytes <tt>pinRange()</tt> returned.
+	 */
+	public void unpinRange(int vaddr, int length) {
+		if (length <= 0)
+			return;
 
-			if (!pageTable[vpn].valid) {
-				int faultVaddr = Processor.makeAddress(vpn, 0);
-				handlePageFault(faultVaddr);
-			}
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+		boolean unpinned = false;
 
-			ppn = pageTable[vpn].ppn;
-			paddr = pageSize * ppn + offset_from_vaddr;
-			bytesRemaining -= amountToCopy;
-			
+		VMKernel.iptLock.acquire();
+		for (int vpn = firstVPN; vpn <= lastVPN; vpn++) {
+			if (--VMKernel.iptPinCount[pageTable[vpn].ppn] == 0)
+				unpinned = true;
 		}
 
-		return amount;
+		// a fault may be waiting for a frame it can replace
+		if (unpinned)
+			VMKernel.pinCV.wakeAll();
+		VMKernel.iptLock.release();
+	}
+
+	/**
+	 * Test whether a virtual page is mapped to a frame. Entries above the
+	 * program's own pages exist only once a memory-mapped page is touched.
+	 */
+	private boolean isResident(int vpn) {
+		return pageTable[vpn] != null && pageTable[vpn].valid;
 	}
 
 	/**
@@ -231,36 +253,92 @@ public class VMProcess extends UserProcess {
 
 		VMKernel.iptLock.acquire(); 
 
+		VMKernel.waitWhileSuspended(this);
+		VMKernel.noteFault(this);
+
 		int faultingVPN = Processor.pageFromAddress(vaddr);
-		boolean isDirty = pageTable[faultingVPN].dirty;
 
-		/** CASE I: Page is in swap file */
-		if(isDirty){
-			int vpn = faultingVPN;
-			int ppn = 0;
+		// promote first, so the faulting page is resident when we return
+		if (VMKernel.superpageSize > 1 && faultingVPN < numPages)
+			promoteSuperpage(faultingVPN);
 
-			UserKernel.fppLock.acquire();
-			//free page already exists
-			if(!UserKernel.freePhysicalPages.isEmpty()){
-				ppn = UserKernel.freePhysicalPages.removeFirst();
-			}
-			//page replacement
-			else{
-				ppn = VMKernel.chooseEvictPPN();
+		if (!isResident(faultingVPN))
+			loadPage(faultingVPN);
+
+		VMKernel.iptLock.release();
+	}
+
+	/**
+	 * Make the rest of the aligned run of <tt>VMKernel.superpageSize</tt>
+	 * pages around a faulting page resident, so that a program sweeping a
+	 * region takes one fault per run rather than one per page. Pages held in
+	 * swap are left to fault on their own; the others, whether never loaded
+	 * or evicted clean, are read again from the executable or zero-filled.
+	 * They are brought in only while there are free frames and the process is
+	 * below its resident limit, so promotion never evicts. Called with
+	 * <tt>iptLock</tt> held.
+	 */
+	private void promoteSuperpage(int faultingVPN) {
+		int firstVPN = faultingVPN & ~(VMKernel.superpageSize - 1);
+		int lastVPN = Math.min(firstVPN + VMKernel.superpageSize, numPages);
+
+		for (int vpn = firstVPN; vpn < lastVPN; vpn++) {
+			if (vpn == faultingVPN || pageTable[vpn].valid || pageTable[vpn].dirty)
+				continue;
+
+			// keep a free frame, and room under the resident limit, back for
+			// the faulting page itself
+			if (UserKernel.frames.getNumFree() <= 1
+					|| (residentLimit > 0 && residentPages + 1 >= residentLimit))
+				break;
+
+			loadPage(vpn);
+			// leave the prefetched page for the clock hand to reclaim first
+			// if the program never touches it
+			pageTable[vpn].used = false;
+		}
+	}
+
+	/**
+	 * Make a non-resident page resident, from the memory-mapped file, swap,
+	 * executable or zero-fill that backs it. Called with <tt>iptLock</tt>
+	 * held; the lock is dropped while the page is read, so faults on other
+	 * pages can proceed in the meantime.
+	 */
+	private void loadPage(int faultingVPN) {
+		/** Page is backed by a memory-mapped file */
+		MemoryMap map = findMemoryMap(faultingVPN);
+		if (map != null) {
+			if (pageTable[faultingVPN] == null) {
+				pageTable[faultingVPN] = new TranslationEntry(faultingVPN, -1, false, false, false, false);
 			}
-			UserKernel.fppLock.release();
 
-			swapIn(vpn, ppn);
+			int ppn = allocateFrame(pageTable[faultingVPN]);
+
+			VMKernel.iptLock.release();
+			map.loadPage(faultingVPN, ppn);
+			VMKernel.iptLock.acquire();
+
+			pageTable[faultingVPN].dirty = false;
+			finishLoad(pageTable[faultingVPN], ppn);
+			return;
+		}
+
+		// a hole between the program and a memory-mapped file
+		if (pageTable[faultingVPN] == null) return;
 
-			pageTable[vpn].ppn = ppn;
-			pageTable[vpn].valid = true;
-			pageTable[vpn].used = true;
+		boolean isDirty = pageTable[faultingVPN].dirty;
 
-			VMKernel.ipt[ppn].process = this;
-			VMKernel.ipt[ppn].entry = pageTable[vpn];
-			VMKernel.ipt[ppn].isPinned = false;
+		/** CASE I: Page is in swap file */
+		if(isDirty){
+			int vpn = faultingVPN;
+			int ppn = allocateFrame(pageTable[vpn]);
 
 			VMKernel.iptLock.release();
+			swapIn(vpn, ppn);
+			VMKernel.iptLock.acquire();
+
+			finishLoad(pageTable[vpn], ppn);
 			return;
 		}
 
@@ -277,31 +355,41 @@ public class VMProcess extends UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 				vpnCounter = vpn;
-				int ppn = 0;
 				
 				if(faultingVPN == vpn){
-					UserKernel.fppLock.acquire();
-					//free page already exists
-					if(!UserKernel.freePhysicalPages.isEmpty()){
-						ppn = UserKernel.freePhysicalPages.removeFirst();
+					// .bss pages start out as the shared zero page
+					if (!section.isInitialzed() && mapZeroPage(vpn)) {
+						return;
 					}
-					//page replacement
-					else{
-						ppn = VMKernel.chooseEvictPPN();
+
+					// another process may already have this text page resident,
+					// or be loading it
+					while (section.isReadOnly()) {
+						int sharedPPN = UserKernel.getSharedPage(sharedPageKey(s, i));
+						if (sharedPPN == -1) {
+							break;
+						}
+						if (VMKernel.iptState[sharedPPN] == VMKernel.frameResident) {
+							mapSharedPage(vpn, sharedPPN);
+							return;
+						}
+						UserKernel.releaseSharedPage(sharedPPN);
+						VMKernel.iptCV[sharedPPN].sleep();
 					}
-					UserKernel.fppLock.release();
 
-					pageTable[vpn].ppn = ppn;
-					pageTable[vpn].valid = true;
-					pageTable[vpn].used = true;
-					
-					section.loadPage(i, ppn);
+					int ppn = allocateFrame(pageTable[vpn]);
+					pageTable[vpn].readOnly = section.isReadOnly();
 
-					VMKernel.ipt[ppn].process = this;
-					VMKernel.ipt[ppn].entry = pageTable[vpn];
-					VMKernel.ipt[ppn].isPinned = false;
+					if (section.isReadOnly()
+							&& UserKernel.addSharedPage(sharedPageKey(s, i), ppn)) {
+						VMKernel.addSharer(ppn, pageTable[vpn]);
+					}
 
 					VMKernel.iptLock.release();
+					section.loadPage(i, ppn);
+					VMKernel.iptLock.acquire();
+
+					finishLoad(pageTable[vpn], ppn);
 					return;
 				}
 			}
@@ -310,47 +398,162 @@ public class VMProcess extends UserProcess {
 		//CASE IIb: Load from stack pages
 		for (int i = vpnCounter + 1; i < numPages; i++) {
 			int vpn = i;
-			int ppn = 0;
 
 			if (faultingVPN == vpn) {
-				UserKernel.fppLock.acquire();
-				//free page already exists
-				if(!UserKernel.freePhysicalPages.isEmpty()){
-					ppn = UserKernel.freePhysicalPages.removeFirst();
-					Lib.debug(dbgProcess, "ppn from free: " + ppn);
-				}
-				//page replacement
-				else{
-					// ppn = replacePage(vpn);
-					ppn = VMKernel.chooseEvictPPN();
-					Lib.debug(dbgProcess, "ppn from evict: " + ppn);
+				if (mapZeroPage(vpn)) {
+					return;
 				}
-				UserKernel.fppLock.release();
 
-				// pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, isDirty);
-				pageTable[vpn].ppn = ppn;
-				pageTable[vpn].valid = true;
-				pageTable[vpn].used = true;
+				int ppn = allocateFrame(pageTable[vpn]);
+				Lib.debug(dbgProcess, "stack vpn " + vpn + " assigned to ppn " + ppn);
 
-				byte[] data = new byte[pageSize];
-				Arrays.fill(data, (byte) 0);
-				System.arraycopy(data, 0, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0), pageSize);
+				Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+						(ppn + 1) * pageSize, (byte) 0);
 
-				// Lib.debug(dbgProcess, "Not dirty, stack; vpn " + vpn + " assigned to ppn " + ppn);
-				// VMKernel.ipt[ppn] = new VMKernel.IPTEntry(this, pageTable[vpn], false);
+				finishLoad(pageTable[vpn], ppn);
+			}
+		}
+	}
 
-				VMKernel.ipt[ppn].process = this;
-				VMKernel.ipt[ppn].entry = pageTable[vpn];
-				VMKernel.ipt[ppn].isPinned = false;
+	/**
+	 * Map a page that starts out zero-filled to the shared zero frame,
+	 * read-only and copy-on-write, so that it only gets a frame of its own
+	 * once it is written. The zero frame is loaded and published in the
+	 * shared page cache by whichever fault needs it first. Called with
+	 * <tt>iptLock</tt> held.
+	 * 
+	 * @param vpn the page to map.
+	 * @return <tt>true</tt> if the page was mapped, or <tt>false</tt> if zero
+	 * pages are not shared and the caller must zero-fill a frame itself.
+	 */
+	private boolean mapZeroPage(int vpn) {
+		if (!VMKernel.shareZeroPages) {
+			return false;
+		}
+
+		while (true) {
+			int sharedPPN = UserKernel.getSharedPage(VMKernel.zeroPageKey);
+			if (sharedPPN == -1) {
+				break;
+			}
+			if (VMKernel.iptState[sharedPPN] == VMKernel.frameResident) {
+				mapSharedPage(vpn, sharedPPN);
+				return true;
 			}
+			UserKernel.releaseSharedPage(sharedPPN);
+			VMKernel.iptCV[sharedPPN].sleep();
 		}
 
-		VMKernel.iptLock.release();
+		int ppn = allocateFrame(pageTable[vpn]);
+		Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+				(ppn + 1) * pageSize, (byte) 0);
+
+		if (UserKernel.addSharedPage(VMKernel.zeroPageKey, ppn)) {
+			pageTable[vpn].readOnly = true;
+			VMKernel.iptCOW[ppn] = true;
+			VMKernel.addSharer(ppn, pageTable[vpn]);
+		}
+
+		finishLoad(pageTable[vpn], ppn);
+		return true;
+	}
+
+	/**
+	 * Test whether the page-merging scan may share the frame holding a
+	 * page: only pages of the program's own address space, not pages of a
+	 * file mapped by <tt>mmap()</tt>, which are written back to the file.
+	 */
+	boolean isMergeable(int vpn) {
+		return vpn < numPages;
+	}
+
+	/**
+	 * Test whether a page table entry is one of this process's.
+	 */
+	boolean maps(TranslationEntry entry) {
+		return pageTable != null && entry.vpn < pageTable.length
+				&& pageTable[entry.vpn] == entry;
+	}
+
+	/**
+	 * Take a frame for a page about to be loaded, from the free list or by
+	 * replacement, and mark it loading so that the clock hand passes over it
+	 * while <tt>iptLock</tt> is dropped for I/O. If every frame is pinned or
+	 * loading, waits for one to become replaceable. Called with
+	 * <tt>iptLock</tt> held.
+	 */
+	private int allocateFrame(TranslationEntry entry) {
+		int ppn = -1;
+
+		while (ppn == -1) {
+			// a process at its resident limit replaces its own pages
+			if (residentLimit > 0 && residentPages >= residentLimit)
+				ppn = VMKernel.chooseLocalEvictPPN(this);
+
+			//free page already exists
+			if (ppn == -1)
+				ppn = UserKernel.frames.allocate();
+
+			//page replacement, once some frame is neither pinned nor loading
+			if (ppn == -1) {
+				if (VMKernel.canAllocateFrame())
+					ppn = VMKernel.chooseEvictPPN();
+				else
+					VMKernel.pinCV.sleep();
+			}
+		}
+
+		VMKernel.setFrameOwner(ppn, this);
+		VMKernel.iptEntry[ppn] = entry;
+		VMKernel.iptPinCount[ppn] = 0;
+		VMKernel.iptState[ppn] = VMKernel.frameLoading;
+
+		return ppn;
+	}
+
+	/**
+	 * Map a loaded frame and wake any faults waiting for it. Called with
+	 * <tt>iptLock</tt> held.
+	 */
+	private void finishLoad(TranslationEntry entry, int ppn) {
+		entry.ppn = ppn;
+		entry.valid = true;
+		entry.used = true;
+
+		VMKernel.iptState[ppn] = VMKernel.frameResident;
+		VMKernel.iptCV[ppn].wakeAll();
+		VMKernel.pinCV.wakeAll();
+	}
+
+	/**
+	 * Map a frame from the shared page cache, on which the caller already holds
+	 * a reference, into this process. Called with <tt>iptLock</tt> held.
+	 */
+	private void mapSharedPage(int vpn, int ppn) {
+		pageTable[vpn].ppn = ppn;
+		pageTable[vpn].valid = true;
+		pageTable[vpn].used = true;
+		pageTable[vpn].readOnly = true;
+
+		VMKernel.setFrameOwner(ppn, this);
+		VMKernel.iptEntry[ppn] = pageTable[vpn];
+		VMKernel.addSharer(ppn, pageTable[vpn]);
 	}
 
 	// called by VMKernel
 	public int evict(int toEvictVPN, int ppn) {
 		pageTable[toEvictVPN].valid = false;
+
+		// mapped pages go back to their file instead of to swap
+		MemoryMap map = findMemoryMap(toEvictVPN);
+		if (map != null) {
+			if (pageTable[toEvictVPN].dirty)
+				map.writePage(toEvictVPN, ppn);
+			pageTable[toEvictVPN].dirty = false;
+			pageTable[toEvictVPN].ppn = -1;
+			return -1;
+		}
+
 		if (pageTable[toEvictVPN].dirty) {
 			int spn = swapOut(-1, ppn); // first param not really used
 			pageTable[toEvictVPN].ppn = spn;
@@ -360,7 +563,7 @@ public class VMProcess extends UserProcess {
 		return -1;
 	}
 
-	public int swapOut(int vpn, int ppn){
+	public static int swapOut(int vpn, int ppn){
 		VMKernel.fspLock.acquire();
 
 		int spn = 0;
@@ -369,10 +572,13 @@ public class VMProcess extends UserProcess {
 		} 
 		else {
 			spn = VMKernel.numSwapPages;
+			VMKernel.numSwapPages++;
 		}
-		VMKernel.numSwapPages++;
 		// writing ppn (page to be swapped out) from memory to swap file on disk (pos is spn)
-		VMKernel.swapFile.write(spn * pageSize, Machine.processor().getMemory(), ppn * pageSize, pageSize);
+		if (VMKernel.compressedSwap != null)
+			VMKernel.compressedSwap.store(spn, Machine.processor().getMemory(), ppn * pageSize);
+		else
+			VMKernel.swapFile.write(spn * pageSize, Machine.processor().getMemory(), ppn * pageSize, pageSize);
 
 		VMKernel.fspLock.release();
 
@@ -386,13 +592,273 @@ public class VMProcess extends UserProcess {
 
 		int spn = pageTable[vpn].ppn; // find where swapped out file is located at in swap file
 
-		VMKernel.swapFile.read(spn * pageSize, Machine.processor().getMemory(), ppn * pageSize, Processor.pageSize);
-        VMKernel.freeSwapPages.add(spn);
+		if (VMKernel.compressedSwap == null
+				|| !VMKernel.compressedSwap.load(spn, Machine.processor().getMemory(), ppn * pageSize))
+			VMKernel.swapFile.read(spn * pageSize, Machine.processor().getMemory(), ppn * pageSize, Processor.pageSize);
+		releaseSwapPage(spn);
 
 		VMKernel.fspLock.release();
 
 	}
 
+	/**
+	 * Drop one reference to a swap page, freeing it once no page table entry
+	 * refers to it. Called with <tt>fspLock</tt> held.
+	 */
+	private static void releaseSwapPage(int spn) {
+		Integer refs = VMKernel.swapRefCount.remove(spn);
+		if (refs == null) {
+			if (VMKernel.compressedSwap != null)
+				VMKernel.compressedSwap.remove(spn);
+			VMKernel.freeSwapPages.add(spn);
+		}
+		else if (refs > 2) {
+			VMKernel.swapRefCount.put(spn, refs - 1);
+		}
+	}
+
+	/**
+	 * Share this process's parent's address space copy-on-write. Resident
+	 * writable pages become read-only in both page tables and their frames are
+	 * marked copy-on-write; swapped-out pages share the parent's swap page.
+	 */
+	protected boolean copyAddressSpace(UserProcess parent) {
+		TranslationEntry[] parentPageTable = ((VMProcess) parent).pageTable;
+
+		residentLimit = ((VMProcess) parent).residentLimit;
+
+		pageTable = new TranslationEntry[numPages];
+
+		VMKernel.iptLock.acquire();
+		VMKernel.addProcess(this);
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = parentPageTable[vpn];
+
+			if (entry.valid) {
+				int ppn = entry.ppn;
+
+				if (!UserKernel.isSharedPage(ppn))
+					VMKernel.addSharer(ppn, entry);
+				UserKernel.addFrameReference(ppn);
+
+				if (!entry.readOnly || VMKernel.iptCOW[ppn]) {
+					VMKernel.iptCOW[ppn] = true;
+					entry.readOnly = true;
+				}
+
+				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true, false, entry.dirty);
+				VMKernel.addSharer(ppn, pageTable[vpn]);
+			}
+			else if (entry.dirty) {
+				VMKernel.fspLock.acquire();
+				Integer refs = VMKernel.swapRefCount.get(entry.ppn);
+				VMKernel.swapRefCount.put(entry.ppn, refs == null ? 2 : refs + 1);
+				VMKernel.fspLock.release();
+
+				pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, false, entry.readOnly, false, true);
+			}
+			else {
+				pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+			}
+		}
+		VMKernel.iptLock.release();
+
+		return true;
+	}
+
+	/**
+	 * Give this process a private, writable copy of a copy-on-write page. If
+	 * every other mapping of the frame is gone, the frame itself becomes
+	 * private again instead of being copied.
+	 * 
+	 * @param vpn the page being written.
+	 * @return <tt>true</tt> if the write should be retried, or <tt>false</tt>
+	 * if the page really is read-only.
+	 */
+	private boolean handleCopyOnWrite(int vpn) {
+		VMKernel.iptLock.acquire();
+		boolean retry = copyOnWrite(vpn);
+		VMKernel.iptLock.release();
+
+		return retry;
+	}
+
+	/**
+	 * Make a copy-on-write page private, as for <tt>handleCopyOnWrite()</tt>.
+	 * Called with <tt>iptLock</tt> held.
+	 */
+	private boolean copyOnWrite(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+
+		// evicted since the fault; retrying faults in a private copy
+		if (!entry.valid) {
+			return true;
+		}
+
+		int ppn = entry.ppn;
+
+		// the page merger protects a private page while it compares it, and
+		// lets it be written again if it is not merged
+		if (!VMKernel.iptCOW[ppn]) {
+			return !entry.readOnly;
+		}
+
+		if (VMKernel.getNumSharers(ppn) == 1) {
+			VMKernel.clearSharers(ppn);
+			VMKernel.iptCOW[ppn] = false;
+			UserKernel.evictSharedPage(ppn);
+		}
+		else {
+			// keep the source frame from being chosen for replacement
+			VMKernel.iptPinCount[ppn]++;
+
+			int newPPN = allocateFrame(entry);
+
+			VMKernel.iptPinCount[ppn]--;
+
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, ppn * pageSize, memory, newPPN * pageSize, pageSize);
+
+			VMKernel.removeSharer(ppn, entry);
+			if (VMKernel.iptEntry[ppn] == entry) {
+				VMKernel.iptEntry[ppn] = VMKernel.getFirstSharer(ppn);
+			}
+			if (VMKernel.iptProcess[ppn] == this) {
+				VMKernel.setFrameOwner(ppn, VMKernel.getMapper(VMKernel.iptEntry[ppn]));
+			}
+			VMKernel.releaseFrame(ppn);
+
+			entry.ppn = newPPN;
+		}
+
+		entry.readOnly = false;
+		entry.used = true;
+		entry.dirty = true;
+
+		VMKernel.setFrameOwner(entry.ppn, this);
+		VMKernel.iptEntry[entry.ppn] = entry;
+		VMKernel.iptState[entry.ppn] = VMKernel.frameResident;
+
+		return true;
+	}
+
+	/**
+	 * Handle the mmap() system call. Maps <i>length</i> bytes of the file
+	 * referred to by <i>fd</i> at the page-aligned address <i>vaddr</i>, which
+	 * must lie above the stack and must not overlap another mapping. Pages are
+	 * read from the file when first touched, and dirty pages are written back
+	 * to it when they are evicted or unmapped. The mapping keeps its own handle
+	 * on the file, so it survives close(fd).
+	 */
+	private int handleMmap(int fd, int vaddr, int length) {
+		OpenFile file = getOpenFile(fd);
+		if (file == null || vaddr < 0 || length <= 0
+				|| Processor.offsetFromAddress(vaddr) != 0) {
+			return -1;
+		}
+
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int mapPages = Lib.divRoundUp(length, pageSize);
+		if (firstVPN < numPages || mapPages > maxPageTableSize
+				|| firstVPN > maxPageTableSize - mapPages) {
+			return -1;
+		}
+
+		for (MemoryMap map : memoryMaps) {
+			if (firstVPN < map.firstVPN + map.numPages
+					&& map.firstVPN < firstVPN + mapPages) {
+				return -1;
+			}
+		}
+
+		OpenFile mapFile = UserKernel.openFiles.open(file.getName(), false);
+		if (mapFile == null) return -1;
+
+		VMKernel.iptLock.acquire();
+		if (firstVPN + mapPages > pageTable.length) {
+			// entries past the program are created when first touched; the
+			// processor treats a missing entry as a page fault
+			pageTable = Arrays.copyOf(pageTable, firstVPN + mapPages);
+			Machine.processor().setPageTable(pageTable);
+		}
+		memoryMaps.add(new MemoryMap(mapFile, firstVPN, mapPages, length));
+		VMKernel.iptLock.release();
+
+		return 0;
+	}
+
+	/**
+	 * Handle the munmap() system call. Writes the dirty pages of the mapping
+	 * starting at <i>vaddr</i> back to its file and removes the mapping.
+	 */
+	private int handleMunmap(int vaddr) {
+		MemoryMap map = findMemoryMap(Processor.pageFromAddress(vaddr));
+		if (map == null || Processor.makeAddress(map.firstVPN, 0) != vaddr) {
+			return -1;
+		}
+
+		unmap(map);
+		return 0;
+	}
+
+	/**
+	 * Write back and release every resident page of a mapping, then close its
+	 * file.
+	 */
+	private void unmap(MemoryMap map) {
+		VMKernel.iptLock.acquire();
+		for (int vpn = map.firstVPN; vpn < map.firstVPN + map.numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry == null || !entry.valid) continue;
+
+			if (entry.dirty)
+				map.writePage(vpn, entry.ppn);
+
+			entry.valid = false;
+			entry.dirty = false;
+			VMKernel.releaseFrame(entry.ppn);
+			entry.ppn = -1;
+		}
+		memoryMaps.remove(map);
+		VMKernel.iptLock.release();
+
+		map.file.close();
+	}
+
+	/**
+	 * Return the mapping containing a virtual page, or <tt>null</tt>.
+	 */
+	private MemoryMap findMemoryMap(int vpn) {
+		if (vpn < numPages) return null;
+
+		for (MemoryMap map : memoryMaps) {
+			if (vpn >= map.firstVPN && vpn < map.firstVPN + map.numPages)
+				return map;
+		}
+		return null;
+	}
+
+	private static final int syscallMmap = 10, syscallMunmap = 14;
+
+	/**
+	 * Add <tt>mmap()</tt> and <tt>munmap()</tt> to the syscalls of
+	 * <tt>UserProcess</tt>.
+	 */
+	protected void registerSyscalls(SyscallTable syscallTable) {
+		super.registerSyscalls(syscallTable);
+
+		syscallTable.register(syscallMmap, "mmap", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return ((VMProcess) process).handleMmap(a0, a1, a2);
+			}
+		});
+		syscallTable.register(syscallMunmap, "munmap", new SyscallTable.Handler() {
+			public int handle(UserProcess process, int a0, int a1, int a2, int a3) {
+				return ((VMProcess) process).handleMunmap(a0);
+			}
+		});
+	}
+
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
@@ -405,7 +871,19 @@ public class VMProcess extends UserProcess {
 
 		switch (cause) {
 		case Processor.exceptionPageFault:
-			handlePageFault(processor.readRegister(Processor.regBadVAddr));
+			int faultVaddr = processor.readRegister(Processor.regBadVAddr);
+			int faultVPN = Processor.pageFromAddress(faultVaddr);
+			if (faultVPN >= numPages && findMemoryMap(faultVPN) == null) {
+				super.handleException(cause);
+				break;
+			}
+			handlePageFault(faultVaddr);
+			break;
+		case Processor.exceptionReadOnly:
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			if (!handleCopyOnWrite(vpn)) {
+				super.handleException(cause);
+			}
 			break;
 		default:
 			super.handleException(cause);
@@ -413,6 +891,101 @@ public class VMProcess extends UserProcess {
 		}
 	}
 
+	/**
+	 * A region of a file mapped into this process's address space by
+	 * <tt>mmap()</tt>.
+	 */
+	private static class MemoryMap {
+		MemoryMap(OpenFile file, int firstVPN, int numPages, int length) {
+			this.file = file;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+			this.length = length;
+		}
+
+		/**
+		 * Read a page of the file into a frame, zero-filling past the end of
+		 * the file or mapping.
+		 */
+		void loadPage(int vpn, int ppn) {
+			byte[] memory = Machine.processor().getMemory();
+			int pos = (vpn - firstVPN) * pageSize;
+			int paddr = ppn * pageSize;
+
+			int bytesRead = file.read(pos, memory, paddr, Math.min(pageSize, length - pos));
+			Arrays.fill(memory, paddr + Math.max(bytesRead, 0), paddr + pageSize, (byte) 0);
+		}
+
+		/**
+		 * Write a frame back to its page of the file.
+		 */
+		void writePage(int vpn, int ppn) {
+			int pos = (vpn - firstVPN) * pageSize;
+
+			file.write(pos, Machine.processor().getMemory(), ppn * pageSize,
+					Math.min(pageSize, length - pos));
+		}
+
+		OpenFile file;
+		int firstVPN;
+		int numPages;
+		int length;
+	}
+
+	/**
+	 * Return the number of frames charged to this process: its private
+	 * frames, and shared frames it was the last to map.
+	 * 
+	 * @return the resident set size, in pages.
+	 */
+	public int getResidentPages() {
+		return residentPages;
+	}
+
+	/**
+	 * Return the scheduling priority of this process's thread.
+	 */
+	int getPriority() {
+		if (thread == null)
+			return 0;
+
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = ThreadedKernel.scheduler.getPriority(thread);
+		Machine.interrupt().restore(intStatus);
+
+		return priority;
+	}
+
+	/** The number of frames charged to this process; kept by
+	 * <tt>VMKernel.setFrameOwner()</tt>. */
+	int residentPages = 0;
+
+	/** The most frames charged to this process at once. */
+	int peakResidentPages = 0;
+
+	/** Where <tt>VMKernel.chooseLocalEvictPPN()</tt> resumes its sweep. */
+	int clockHand = 0;
+
+	/** The page faults taken in the load controller's current window. */
+	int windowFaults = 0;
+
+	/** Set while the load controller has this process suspended. */
+	boolean suspended = false;
+
+	/** When this process was last suspended. */
+	long suspendTime;
+
+	/** The most frames this process may hold before it replaces its own
+	 * pages; 0 for no limit. */
+	private int residentLimit;
+
+	/** The files mapped into this process by <tt>mmap()</tt>. */
+	private LinkedList<MemoryMap> memoryMaps = new LinkedList<MemoryMap>();
+
+	/** The largest address space, in pages, that <tt>mmap()</tt> may grow the
+	 * page table to. */
+	private static final int maxPageTableSize = 0x10000;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';